@@ -0,0 +1,200 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf.benchmark;
+
+import no.acando.xmltordf.Builder;
+import no.acando.xmltordf.XmlToRdfAdvancedJena;
+import no.acando.xmltordf.XmlToRdfAdvancedRDF4J;
+import no.acando.xmltordf.XmlToRdfAdvancedStream;
+import no.acando.xmltordf.XmlToRdfFast;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts a synthetic document with each of the converters. Next to the operations per second JMH reports the
+ * megabytes and triples per second from the Throughput counters. Run with the GC profiler (see Main) to get the
+ * allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4G", "-Xmx4G"})
+public class ConversionBenchmark {
+
+	@Param({"deep", "wide", "attributes", "mixedContent", "text"})
+	public SyntheticDocument shape;
+
+	@Param({"10"})
+	public int megabytes;
+
+	private byte[] document;
+
+	private XmlToRdfFast fast;
+	private XmlToRdfAdvancedStream stream;
+	private XmlToRdfAdvancedJena jena;
+	private XmlToRdfAdvancedRDF4J rdf4j;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		document = shape.generate(megabytes * 1024 * 1024);
+
+		fast = Builder.getFastBuilder().build();
+		stream = Builder.getAdvancedBuilderStream().build();
+		jena = Builder.getAdvancedBuilderJena().build();
+		rdf4j = Builder.getAdvancedBuilderRDF4J().build();
+	}
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public double megabytes;
+		public long triples;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+			triples = 0;
+		}
+
+		void converted(byte[] document, long triples) {
+			this.megabytes += document.length / (1024.0 * 1024.0);
+			this.triples += triples;
+		}
+	}
+
+	@Benchmark
+	public long fast(Throughput throughput) throws Exception {
+		LineCountingOutputStream out = new LineCountingOutputStream();
+		fast.convertToStream(new ByteArrayInputStream(document), out);
+
+		throughput.converted(document, out.lines);
+		return out.lines;
+	}
+
+	@Benchmark
+	public long advancedStream(Throughput throughput) throws Exception {
+		LineCountingOutputStream out = new LineCountingOutputStream();
+		stream.convertToStream(new ByteArrayInputStream(document), out);
+
+		throughput.converted(document, out.lines);
+		return out.lines;
+	}
+
+	@Benchmark
+	public long jenaDataset(Throughput throughput) throws Exception {
+		Dataset dataset = jena.convertToDataset(new ByteArrayInputStream(document));
+		long triples = dataset.getDefaultModel().size();
+
+		throughput.converted(document, triples);
+		return triples;
+	}
+
+	@Benchmark
+	public long jenaStreamRDF(Throughput throughput) throws Exception {
+		TripleCounter counter = new TripleCounter();
+		jena.convertToStreamRDF(new ByteArrayInputStream(document), counter);
+
+		throughput.converted(document, counter.triples);
+		return counter.triples;
+	}
+
+	@Benchmark
+	public long rdf4jRepository(Throughput throughput) throws Exception {
+		Repository repository = rdf4j.convertToRepository(new ByteArrayInputStream(document));
+		long triples;
+		try (RepositoryConnection connection = repository.getConnection()) {
+			triples = connection.size();
+		}
+		repository.shutDown();
+
+		throughput.converted(document, triples);
+		return triples;
+	}
+
+	@Benchmark
+	public long rdf4jHandler(Throughput throughput) throws Exception {
+		StatementCounter counter = new StatementCounter();
+		rdf4j.convertToHandler(new ByteArrayInputStream(document), counter);
+
+		throughput.converted(document, counter.statements);
+		return counter.statements;
+	}
+
+	// the fast and stream converters write one triple per line, except for lists and multi-line literals
+	private static class LineCountingOutputStream extends OutputStream {
+		long lines;
+
+		@Override
+		public void write(int b) {
+			if (b == '\n') {
+				lines++;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				if (b[i] == '\n') {
+					lines++;
+				}
+			}
+		}
+	}
+
+	private static class TripleCounter extends StreamRDFBase {
+		long triples;
+
+		@Override
+		public void triple(Triple triple) {
+			triples++;
+		}
+	}
+
+	private static class StatementCounter extends AbstractRDFHandler {
+		long statements;
+
+		@Override
+		public void handleStatement(Statement statement) {
+			statements++;
+		}
+	}
+
+}
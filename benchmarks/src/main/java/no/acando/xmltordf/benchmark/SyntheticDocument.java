@@ -0,0 +1,145 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic XML documents of a given shape and approximate size. The same seed is used every time, so
+ * every run converts the same document.
+ */
+public enum SyntheticDocument {
+
+	/**
+	 * Records nested 40 levels deep, every level with a short text child.
+	 */
+	deep {
+		@Override
+		void record(StringBuilder xml, Random random, int i) {
+			for (int level = 0; level < 40; level++) {
+				xml.append("<level n=\"").append(level).append("\"><label>level ").append(level).append("</label>");
+			}
+			xml.append("<value>").append(random.nextInt()).append("</value>");
+			for (int level = 0; level < 40; level++) {
+				xml.append("</level>");
+			}
+		}
+	},
+
+	/**
+	 * Flat records with many different simple children, the typical database export.
+	 */
+	wide {
+		@Override
+		void record(StringBuilder xml, Random random, int i) {
+			xml.append("<record>");
+			for (int field = 0; field < 30; field++) {
+				xml.append("<field").append(field).append('>');
+				value(xml, random, field);
+				xml.append("</field").append(field).append('>');
+			}
+			xml.append("</record>");
+		}
+	},
+
+	/**
+	 * Records where all the data is in attributes, including a namespaced one.
+	 */
+	attributes {
+		@Override
+		void record(StringBuilder xml, Random random, int i) {
+			xml.append("<record id=\"r").append(i).append("\" o:source=\"generated\"");
+			for (int attribute = 0; attribute < 15; attribute++) {
+				xml.append(" attribute").append(attribute).append("=\"");
+				value(xml, random, attribute);
+				xml.append('"');
+			}
+			xml.append("/>");
+		}
+	},
+
+	/**
+	 * Paragraphs of text with inline markup.
+	 */
+	mixedContent {
+		@Override
+		void record(StringBuilder xml, Random random, int i) {
+			xml.append("<paragraph>Paragraph ").append(i).append(" has <b>bold</b> and <i>italic ")
+				.append(random.nextInt(1000)).append("</i> text, a <link href=\"http://example.org/")
+				.append(i).append("\">link</link> and some more text at the end.</paragraph>");
+		}
+	},
+
+	/**
+	 * Records with long text values that need escaping.
+	 */
+	text {
+		@Override
+		void record(StringBuilder xml, Random random, int i) {
+			xml.append("<entry><title>Entry ").append(i).append("</title><body>");
+			for (int sentence = 0; sentence < 20; sentence++) {
+				xml.append("Sentence ").append(sentence).append(" with &quot;quotes&quot;, &amp; ampersands, ")
+					.append("non-ASCII characters like \u00e6\u00f8\u00e5 and a line break\n");
+			}
+			xml.append("</body></entry>");
+		}
+	};
+
+	abstract void record(StringBuilder xml, Random random, int i);
+
+	/**
+	 * @param bytes approximate size of the document
+	 * @return the document encoded as UTF-8
+	 */
+	public byte[] generate(int bytes) {
+		Random random = new Random(42);
+		StringBuilder xml = new StringBuilder(bytes + 1024);
+
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<root xmlns=\"http://example.org/\" xmlns:o=\"http://other.org/\">\n");
+
+		for (int i = 0; xml.length() < bytes; i++) {
+			record(xml, random, i);
+			xml.append('\n');
+		}
+
+		xml.append("</root>\n");
+
+		return xml.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void value(StringBuilder xml, Random random, int field) {
+		switch (field % 5) {
+			case 0:
+				xml.append(random.nextInt(100000));
+				break;
+			case 1:
+				xml.append(random.nextDouble());
+				break;
+			case 2:
+				xml.append("2016-0").append(1 + random.nextInt(9)).append("-1").append(random.nextInt(10));
+				break;
+			case 3:
+				xml.append("2016-01-01T12:").append(10 + random.nextInt(50)).append(":00");
+				break;
+			default:
+				xml.append("value ").append(random.nextInt(1000));
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf.benchmark;
+
+import no.acando.xmltordf.Builder;
+import no.acando.xmltordf.XmlToRdfAdvancedStream;
+import no.acando.xmltordf.XmlToRdfFast;
+import no.acando.xmltordf.XmlTokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares the JDK SAX parser with the StAX tokenizer by converting every input.xml in the test files of the
+ * xmltordf module once per operation. Run from the root of the repository, or set the testFiles parameter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms1G", "-Xmx1G"})
+public class TokenizerBenchmark {
+
+	@Param({"sax", "stax"})
+	public String tokenizer;
+
+	@Param({"xmltordf/testFiles"})
+	public String testFiles;
+
+	private List<byte[]> documents;
+
+	private XmlToRdfFast fast;
+	private XmlToRdfAdvancedStream stream;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		XmlTokenizer xmlTokenizer = tokenizer.equals("stax") ? XmlTokenizer.stax() : XmlTokenizer.sax();
+
+		fast = Builder.getFastBuilder().tokenizer(xmlTokenizer).build();
+		stream = Builder.getAdvancedBuilderStream().tokenizer(xmlTokenizer).build();
+
+		List<Path> inputs;
+		try (Stream<Path> paths = Files.list(Paths.get(testFiles))) {
+			inputs = paths
+				.map(directory -> directory.resolve("input.xml"))
+				.filter(Files::isRegularFile)
+				.sorted()
+				.collect(Collectors.toList());
+		}
+
+		// only the documents that both converters accept
+		documents = new ArrayList<>();
+		for (Path input : inputs) {
+			byte[] document = Files.readAllBytes(input);
+			try {
+				fast.convertToStream(new ByteArrayInputStream(document), new ByteArrayOutputStream());
+				stream.convertToStream(new ByteArrayInputStream(document), new ByteArrayOutputStream());
+				documents.add(document);
+			} catch (SAXException | IOException | RuntimeException e) {
+				// not well formed or not allowed by the secured parsers
+			}
+		}
+
+		if (documents.isEmpty()) {
+			throw new IllegalStateException("No test files found in " + Paths.get(testFiles).toAbsolutePath());
+		}
+	}
+
+	@Benchmark
+	public long fast() throws Exception {
+		CountingOutputStream out = new CountingOutputStream();
+		for (byte[] document : documents) {
+			fast.convertToStream(new ByteArrayInputStream(document), out);
+		}
+		return out.bytes;
+	}
+
+	@Benchmark
+	public long advancedStream() throws Exception {
+		CountingOutputStream out = new CountingOutputStream();
+		for (byte[] document : documents) {
+			stream.convertToStream(new ByteArrayInputStream(document), out);
+		}
+		return out.bytes;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long bytes;
+
+		@Override
+		public void write(int b) {
+			bytes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			bytes += len;
+		}
+	}
+
+}
@@ -20,10 +20,10 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -34,18 +34,50 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 
 	final static String XSD = "http://www.w3.org/2001/XMLSchema#";
 
+	// larger text buffers are left to the garbage collector instead of being kept for the next element
+	private static final int MAX_REUSED_TEXT_BUFFER = 1 << 20;
+
 
 	Builder.Advanced<ResourceType, Datatype, ? extends Builder.Advanced> builder;
 
 	private long uriCounter = 0;
-	private long index = 0;
+	long index = 0;
+
+	// prefix for blank node identifiers, handlers converting a chunk of a larger document use their own prefix
+	String blankNodePrefix = Common.BLANK_NODE_PREFIX;
+
+	// names resolved so far, converters reuse the table between conversions with the same builder
+	SymbolTable symbolTable;
+
+	// null unless metrics are enabled on the builder
+	final ConversionMetrics metrics;
+
+	// created when the first delayed element is spilled
+	private DelayedElementSpill delayedElementSpill;
+
+	// null unless renameElement(XmlPath, ...) is used
+	private final ReverseElementTree.Cache renamePathCache;
+
+	// composite identifiers by element index from the first pass of compositeIdPrescan(true), null otherwise
+	CompositeIdPrescan.Ids prescannedIds;
+
+	// text buffers by depth, lent to the open element at that depth, see Element.appendValue()
+	private StringBuilder[] textBuffers = new StringBuilder[16];
+	private Element[] textBufferOwners = new Element[16];
 
 	private Element<ResourceType, Datatype> skipElementUntil = null;
 	private final Element<ResourceType, Datatype> skippableElement = new Element<>(this, builder);
 
 	AdvancedSaxHandler(Builder.Advanced<ResourceType, Datatype, ? extends Builder.Advanced> builder) {
+		this(builder, builder.metrics);
+	}
+
+	AdvancedSaxHandler(Builder.Advanced<ResourceType, Datatype, ? extends Builder.Advanced> builder, ConversionMetrics metrics) {
 
 		this.builder = builder;
+		this.symbolTable = new SymbolTable(builder);
+		this.metrics = metrics;
+		this.renamePathCache = builder.renameElementPathMap != null ? builder.renameElementPathMap.new Cache() : null;
 	}
 
 	abstract void createTriple(String subject, String predicate, String object);
@@ -63,7 +95,8 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 	@Override
 	public void characters(char[] ch, int start, int length) throws SAXException {
 
-		if (length > 0) {
+		// the text of skipped elements is never used
+		if (length > 0 && skipElementUntil == null) {
 
 			elementStack.peek().appendValue(ch, start, length);
 
@@ -86,26 +119,23 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 		}
 
 		pop.createTriples();
+		pop.releaseTextBuffer();
 
 
 	}
 
 	Optional<ResourceType> mapLiteralToResource(Element pop) {
-		if (builder.elementTextToUriMap != null) {
-			Map<String, ResourceType> stringResourceTypeMap = builder.elementTextToUriMap.get(pop.getType());
-			if (stringResourceTypeMap != null) {
-				ResourceType value = stringResourceTypeMap.get(pop.getHasValue());
-				if (value != null) {
-					return Optional.of(value);
-				}
+		ElementRules<ResourceType, Datatype> rules = pop.rules;
+
+		if (rules.elementTextToUri != null) {
+			ResourceType value = rules.elementTextToUri.get(pop.getHasValue());
+			if (value != null) {
+				return Optional.of(value);
 			}
 		}
 
-		if (builder.elementTextToUriFunctionMap != null) {
-			StringTransformToT<ResourceType> resourceTypeStringTransformToT = builder.elementTextToUriFunctionMap.get(pop.getType());
-			if (resourceTypeStringTransformToT != null) {
-				return Optional.of(resourceTypeStringTransformToT.transform(pop.getHasValue()));
-			}
+		if (rules.elementTextToUriFunction != null) {
+			return Optional.of(rules.elementTextToUriFunction.transform(pop.getHasValue()));
 		}
 
 		return Optional.empty();
@@ -116,6 +146,10 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 	@Override
 	public void startElement(String namespace, String localName, String qName, Attributes attributes) throws SAXException {
 
+		if (metrics != null) {
+			metrics.element();
+		}
+
 		if (skipElementUntil != null) {
 			elementStack.push(skippableElement);
 			return;
@@ -123,26 +157,14 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 
 		boolean mixedContent = detectMixedContent();
 
-		if (builder.xsiTypeSupport && attributes.getValue("http://www.w3.org/2001/XMLSchema-instance", "type") != null) {
-			String type = attributes.getValue("http://www.w3.org/2001/XMLSchema-instance", "type");
-
-			if (type.contains(":")) {
-				String[] split = type.split(":");
-				namespace = prefixUriMap.get(split[0]);
-				localName = split[1];
-			} else {
-				localName = type;
-			}
-		}
-
 		Element<ResourceType, Datatype> element = new Element<>(this, builder);
 		element.index = index++;
 
-		namespace = calculateNamespace(namespace);
+		SymbolTable.ElementName elementName = elementName(namespace, localName, attributes);
 
-		element.setType(namespace + localName);
+		element.setType(elementName.type, elementName.rules);
 
-		if (builder.skipElementMap != null && builder.skipElementMap.containsKey(element.getType())) {
+		if (element.rules.skip) {
 			skipElementUntil = element;
 			elementStack.push(element);
 			return;
@@ -154,11 +176,11 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 		if (!elementStack.isEmpty()) {
 			parent = elementStack.peek();
 			if (builder.addIndex) {
-				element.elementIndex = parent.indexMap.plusPlus(element.getType());
+				element.elementIndex = parent.nextElementIndex(element.getType());
 			}
-			parent.hasChild.add(element);
+			parent.addChild(element);
 			if (builder.useHashmapForChildren) {
-				parent.hasChildMap.put(element.getType(), element);
+				parent.putChild(element.getType(), element);
 			}
 			if (mixedContent) {
 				parent.addMixedContent(element);
@@ -168,47 +190,71 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 
 		element.parent = parent;
 
-		renameElement(namespace, localName, element);
+		renameElement(elementName, element);
+
+		ElementRules<ResourceType, Datatype> rules = element.rules;
 
-		if (builder.forcedMixedContentMap != null &&
-			builder.forcedMixedContentMap.containsKey(element.getType())) {
+		if (rules.forcedMixedContent) {
 
 			element.containsMixedContent = true;
 		}
 
 
-		if (builder.compositeIdMap != null) {
-
-			CompositeId compositeId = builder.compositeIdMap.get(element.getType());
-			if (compositeId == null) {
-				calculateNodeId(element);
-			} else {
-				element.compositeId = compositeId.simpleClone();
-				if (element.compositeId.elementIndex) {
-					element.compositeId.reolveElementIndex(XmlToRdfVocabulary.index, element.index);
-					element.compositeId.reolveElementIndex(XmlToRdfVocabulary.elementIndex, element.elementIndex);
-				}
+		String prescannedId = rules.compositeId != null && prescannedIds != null ? prescannedIds.get(element.index) : null;
 
+		if (prescannedId != null) {
+			// known from the first pass, so the children don't have to wait for it
+			element.uri = prescannedId;
+		} else if (rules.compositeId == null) {
+			calculateNodeId(element);
+		} else {
+			element.compositeId = rules.compositeId.simpleClone();
+			if (element.compositeId.elementIndex) {
+				element.compositeId.reolveElementIndex(XmlToRdfVocabulary.index, element.index);
+				element.compositeId.reolveElementIndex(XmlToRdfVocabulary.elementIndex, element.elementIndex);
 			}
 
-		} else {
-			calculateNodeId(element);
 		}
 
-		handleAttributes(namespace, attributes, element);
+		handleAttributes(elementName, attributes, element);
 
-		if (builder.useElementAsPredicateMap != null && builder.useElementAsPredicateMap.containsKey(element.getType())) {
+		if (rules.useElementAsPredicate) {
 			element.useElementAsPredicate = true;
 		}
 
-		builder.doComplexTransformElementAtStartOfElement(element);
+		if (rules.transformAtStartOfElement != null) {
+			element.resolveUrisForTransform();
+			rules.transformAtStartOfElement.transform(element);
+		}
 
 
 		elementStack.push(element);
 
 	}
 
-	private void handleAttributes(String elementNamespace, Attributes attributes, Element<ResourceType, Datatype> element) {
+	// the name of the element, or of the type given with xsi:type, which decides the rules for the element
+	private SymbolTable.ElementName elementName(String namespace, String localName, Attributes attributes) {
+		if (builder.xsiTypeSupport && attributes.getValue("http://www.w3.org/2001/XMLSchema-instance", "type") != null) {
+			String type = attributes.getValue("http://www.w3.org/2001/XMLSchema-instance", "type");
+
+			if (type.contains(":")) {
+				String[] split = type.split(":");
+				namespace = prefixUriMap.get(split[0]);
+				localName = split[1];
+			} else {
+				localName = type;
+			}
+		}
+
+		return symbolTable.element(namespace, localName);
+	}
+
+	// whether startElement() would skip the element and everything in it
+	boolean isSkipped(String namespace, String localName, Attributes attributes) {
+		return elementName(namespace, localName, attributes).rules.skip;
+	}
+
+	private void handleAttributes(SymbolTable.ElementName elementName, Attributes attributes, Element<ResourceType, Datatype> element) {
 		int length = attributes.getLength();
 		for (int i = 0; i < length; i++) {
 			String uriAttr = attributes.getURI(i);
@@ -219,9 +265,9 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 				continue;
 			}
 
-			uriAttr = calculateNamespaceForAttribute(elementNamespace, uriAttr);
+			SymbolTable.AttributeName attributeName = elementName.attribute(uriAttr, nameAttr);
 
-			valueAttr = builder.doTransformForAttribute(element.getType(), uriAttr + nameAttr, valueAttr);
+			valueAttr = builder.doTransformForAttribute(element.getType(), attributeName.predicate, valueAttr);
 
 			if (builder.resolveAsQnameInAttributeValue && valueAttr.contains(":")) {
 				String[] split = valueAttr.split(":");
@@ -229,37 +275,16 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 				valueAttr = String.join("", split);
 			}
 
-			builder.getIdByUseAttributeForId(element.getType(), uriAttr + nameAttr, valueAttr, element);
+			builder.getIdByUseAttributeForId(element.getType(), attributeName.predicate, valueAttr, element);
 
-			Property property = new Property(uriAttr, nameAttr, valueAttr);
+			Property property = new Property(attributeName, valueAttr);
 			element.properties.add(property);
 
 			if (element.compositeId != null) {
-				element.compositeId.resolveAttribute(uriAttr + nameAttr, valueAttr);
-			}
-
-		}
-	}
-
-	private String calculateNamespaceForAttribute(String elementNamespace, String uriAttr) {
-		if (builder.overrideNamespace != null) {
-			uriAttr = builder.overrideNamespace;
-		}
-
-		if (builder.autoAddSuffixToNamespace != null) {
-			if (uriAttr != null && !uriAttr.isEmpty() && !(uriAttr.endsWith("/") || uriAttr.endsWith("#"))) {
-				uriAttr += builder.autoAddSuffixToNamespace;
+				element.compositeId.resolveAttribute(attributeName.predicate, valueAttr);
 			}
-		}
 
-		if (uriAttr == null || uriAttr.isEmpty()) {
-			if (builder.autoAttributeNamespace && elementNamespace != null && !elementNamespace.isEmpty()) {
-				uriAttr = elementNamespace;
-			} else if (builder.baseNamespace != null && (builder.baseNamespaceAppliesTo == Builder.AppliesTo.justAttributes || builder.baseNamespaceAppliesTo == Builder.AppliesTo.bothElementsAndAttributes)) {
-				uriAttr = builder.baseNamespace;
-			}
 		}
-		return uriAttr;
 	}
 
 	private void calculateNodeId(Element<ResourceType, Datatype> element) {
@@ -268,52 +293,100 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 			element.uri = builder.uuidBasedIdInsteadOfBlankNodes + UUID.randomUUID().toString();
 
 		} else {
-			element.uri = Common.BLANK_NODE_PREFIX + uriCounter++;
+			element.blankNodeId = uriCounter++;
 
 		}
 	}
 
-	private void renameElement(String uri, String localName, Element<ResourceType, Datatype> element) {
-		if (builder.renameElementPathMap != null) {
-			String newElementName = builder.renameElementPathMap.get(element);
+	private void renameElement(SymbolTable.ElementName elementName, Element<ResourceType, Datatype> element) {
+		if (renamePathCache != null) {
+			String newElementName = renamePathCache.get(element, elementStack.size());
 			if (newElementName != null) {
 				element.setType(newElementName);
 				return;
 			}
 		}
 
-		if (builder.renameElementMap != null) {
-			String newElementName = builder.renameElementMap.get(uri + localName);
-			if (newElementName != null) {
-				element.setType(newElementName);
-				return;
-			}
+		if (elementName.renamedType != null) {
+			element.setType(elementName.renamedType, elementName.renamedRules);
+		} else if (elementName.renameFunction != null) {
+			element.setType(elementName.renameFunction.transform(elementName.namespace, elementName.localName));
+		}
+	}
 
+	StringBuilder borrowTextBuffer(Element<ResourceType, Datatype> element) {
+		int depth = Math.max(elementStack.size() - 1, 0);
+		if (depth >= textBuffers.length) {
+			textBuffers = Arrays.copyOf(textBuffers, depth * 2);
+			textBufferOwners = Arrays.copyOf(textBufferOwners, depth * 2);
 		}
-		if (builder.renameElementFunctionMap != null) {
-			StringTransformTwoValue stringTransformTwoValue = builder.renameElementFunctionMap.get(uri + localName);
-			if (stringTransformTwoValue != null) {
-				element.setType(stringTransformTwoValue.transform(uri, localName));
+
+		StringBuilder buffer = textBuffers[depth];
+		if (buffer == null || buffer.capacity() > MAX_REUSED_TEXT_BUFFER) {
+			buffer = new StringBuilder();
+			textBuffers[depth] = buffer;
+		} else {
+			// an element that is not ended by endElement() may still hold the buffer
+			Element owner = textBufferOwners[depth];
+			if (owner != null && owner != element && owner.holdsTextBuffer(buffer)) {
+				owner.releaseTextBuffer();
 			}
+			buffer.setLength(0);
 		}
+
+		textBufferOwners[depth] = element;
+		return buffer;
 	}
 
-	private String calculateNamespace(String uri) {
-		if (builder.overrideNamespace != null) {
-			return builder.overrideNamespace;
+	DelayedElementSpill delayedElementSpill() {
+		if (delayedElementSpill == null) {
+			delayedElementSpill = new DelayedElementSpill(builder.spillDirectory);
 		}
+		return delayedElementSpill;
+	}
 
-		if (builder.autoAddSuffixToNamespace != null) {
-			if (uri != null && !uri.isEmpty() && !(uri.endsWith("/") || uri.endsWith("#"))) {
-				uri += builder.autoAddSuffixToNamespace;
-			}
+	// deletes the scratch file for delayed elements, called from endDocument()
+	void closeDelayedElementSpill() {
+		if (delayedElementSpill != null) {
+			delayedElementSpill.close();
+			delayedElementSpill = null;
 		}
+	}
 
-		if ((uri == null || uri.isEmpty()) && builder.baseNamespace != null && (builder.baseNamespaceAppliesTo == Builder.AppliesTo.justElements || builder.baseNamespaceAppliesTo == Builder.AppliesTo.bothElementsAndAttributes)) {
-			uri = builder.baseNamespace;
-		}
+	// prepares the handler for the next document in a stream of documents, the blank nodes of each document get their own prefix
+	void startNextDocument(String blankNodePrefix) {
+		this.blankNodePrefix = blankNodePrefix;
+		uriCounter = 0;
+		index = 0;
+		prefixUriMap.clear();
+		elementStack.clear();
+		skipElementUntil = null;
+	}
+
+	// called when the composite id of the element has been resolved
+	void compositeIdResolved(Element<ResourceType, Datatype> element) {
 
-		return uri;
+	}
+
+	// whether a delayed element is needed when the parent creates its triples, the pre-scan only keeps what resolves ids
+	boolean keepDelayedElement(Element<ResourceType, Datatype> parent, Element<ResourceType, Datatype> element) {
+		return true;
+	}
+
+	Element<ResourceType, Datatype> peekElement() {
+		return elementStack.peek();
+	}
+
+	Element<ResourceType, Datatype> popElement() {
+		return elementStack.pop();
+	}
+
+	void pushElement(Element<ResourceType, Datatype> element) {
+		elementStack.push(element);
+	}
+
+	boolean isSkipping() {
+		return skipElementUntil != null;
 	}
 
 	private boolean detectMixedContent() {
@@ -325,7 +398,7 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 				return true;
 			}
 
-			if (peek.getHasValue() != null) {
+			if (builder.detectMixedContent && peek.hasText) {
 				return true;
 			}
 		}
@@ -357,6 +430,12 @@ abstract class AdvancedSaxHandler<ResourceType, Datatype> extends org.xml.sax.he
 		}
 
 		prefixUriMap.put(prefix, uri);
+		prefixMappingAdded(prefix, uri);
+
+	}
+
+	// called after a prefix has been added to prefixUriMap, for handlers that pass prefixes on while parsing
+	void prefixMappingAdded(String prefix, String uri) {
 
 	}
 
@@ -25,16 +25,15 @@ import org.apache.jena.graph.Triple;
 import org.apache.jena.graph.impl.GraphWithPerform;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.riot.system.StreamRDF;
 import org.apache.jena.vocabulary.RDF;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype> {
@@ -42,34 +41,77 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 	private static final Node RDF_REST = NodeFactory.createURI(RDF.rest.toString());
 	private static final Node RDF_FIRST = NodeFactory.createURI(RDF.first.toString());
 	private static final Node RDF_NIL = NodeFactory.createURI(RDF.nil.toString());
-	private Graph graph;
+	private static final String XML_TO_RDF = "http://acandonorway.github.com/XmlToRdf/ontology.ttl#";
 
+	private Graph graph;
 	Dataset dataset;
+
+	// set when converting straight into a caller supplied sink instead of a dataset
+	private final StreamRDF stream;
+	private final ConcurrentLinkedQueue<String[]> pendingPrefixes = new ConcurrentLinkedQueue<>();
+	private volatile RuntimeException streamException;
+
 	private BlockingQueue<Triple> queue;
-	private boolean notDone = true;
+	private volatile boolean notDone = true;
+	private volatile boolean aborted = false;
 	private Thread jenaThread;
 
 	private final Triple EndOfFileTriple = new Triple(NodeFactory.createURI(XmlToRdfVocabulary.EndOfFile), NodeFactory.createURI(XmlToRdfVocabulary.EndOfFile), NodeFactory.createURI(XmlToRdfVocabulary.EndOfFile));
 
 	AdvancedSaxHandlerJena(Builder.AdvancedJena builder) {
+		this(builder, DatasetFactory.createMem(), null);
+	}
+
+	AdvancedSaxHandlerJena(Builder.AdvancedJena builder, StreamRDF stream) {
+		this(builder, null, stream);
+	}
+
+	private AdvancedSaxHandlerJena(Builder.AdvancedJena builder, Dataset dataset, StreamRDF stream) {
 		super(builder);
 
-		queue = new CustomBlockingQueue<>(builder.buffer);
-		dataset = DatasetFactory.createMem();
-		graph = dataset.getDefaultModel().getGraph();
+		queue = new CustomBlockingQueue<>(builder.buffer, builder.waitStrategy, builder.metrics);
+		if (builder.metrics != null) {
+			builder.metrics.queue(queue);
+		}
+		this.dataset = dataset;
+		this.stream = stream;
+		if (dataset != null) {
+			graph = dataset.getDefaultModel().getGraph();
+		}
 
 		this.builder = builder;
-		Thread thread = Thread.currentThread();
 		jenaThread = new Thread() {
 			@Override
 			public void run() {
 
+				if (stream != null) {
+					try {
+						stream.start();
+						stream.prefix("xsd", XSD);
+						stream.prefix("xmlTodRdf", XML_TO_RDF);
+					} catch (RuntimeException e) {
+						// the queue is still drained, so the parser is not blocked, the exception is thrown from endDocument
+						streamException = e;
+					}
+				}
+
+				List<Triple> batch = new ArrayList<>(builder.buffer);
+
 				while (notDone || !queue.isEmpty()) {
 					try {
-						Triple take = queue.take();
-						if (take != EndOfFileTriple) {
-							((GraphWithPerform) graph).performAdd(take);
+						batch.add(queue.take());
+						queue.drainTo(batch);
+
+						if (stream != null) {
+							sendToStream(batch);
+						} else {
+							for (Triple triple : batch) {
+								if (triple != EndOfFileTriple) {
+									((GraphWithPerform) graph).performAdd(triple);
+								}
+							}
 						}
+						batch.clear();
 
 					} catch (InterruptedException e) {
 						// print and ignore
@@ -78,9 +120,25 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 
 				}
 
-				prefixUriMap.forEach(dataset.getDefaultModel()::setNsPrefix);
-				dataset.getDefaultModel().setNsPrefix("xsd", XSD);
-				dataset.getDefaultModel().setNsPrefix("xmlTodRdf", "http://acandonorway.github.com/XmlToRdf/ontology.ttl#");
+				if (stream != null) {
+					if (streamException == null && !aborted) {
+						try {
+							sendPendingPrefixes();
+							stream.finish();
+						} catch (RuntimeException e) {
+							streamException = e;
+						}
+					}
+
+					if ((streamException != null || aborted) && stream instanceof BatchLoaderJena) {
+						// the transaction has to be ended on the thread that started it
+						((BatchLoaderJena) stream).abort();
+					}
+				} else {
+					prefixUriMap.forEach(dataset.getDefaultModel()::setNsPrefix);
+					dataset.getDefaultModel().setNsPrefix("xsd", XSD);
+					dataset.getDefaultModel().setNsPrefix("xmlTodRdf", XML_TO_RDF);
+				}
 
 			}
 		};
@@ -88,9 +146,61 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 		jenaThread.start();
 	}
 
+	private void sendToStream(List<Triple> batch) {
+		if (streamException != null) {
+			// keep draining the queue so that the parser is not blocked, the exception is thrown from endDocument
+			return;
+		}
+
+		try {
+			// prefixes are added before the triples that use them are put on the queue
+			sendPendingPrefixes();
+
+			for (Triple triple : batch) {
+				if (triple != EndOfFileTriple) {
+					stream.triple(triple);
+				}
+			}
+		} catch (RuntimeException e) {
+			streamException = e;
+		}
+	}
+
+	private void sendPendingPrefixes() {
+		String[] prefix;
+		while ((prefix = pendingPrefixes.poll()) != null) {
+			stream.prefix(prefix[0], prefix[1]);
+		}
+	}
+
+	@Override
+	void prefixMappingAdded(String prefix, String uri) {
+		if (stream != null) {
+			pendingPrefixes.add(new String[]{prefix, uri});
+		}
+	}
+
+	/**
+	 * Stops the thread reading from the queue after the conversion has failed. Triples not yet committed to the
+	 * sink are rolled back if the sink supports it.
+	 */
+	void abort() {
+		closeDelayedElementSpill();
+		aborted = true;
+		notDone = false;
+
+		try {
+			queue.put(EndOfFileTriple);
+			jenaThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	@Override
 	public void fatalError(SAXParseException e) throws SAXException {
 
+		aborted = true;
 		notDone = false;
 		try {
 			queue.put(EndOfFileTriple);
@@ -104,6 +214,9 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 	}
 
 	final public void createTriple(String subject, String predicate, String object) {
+		if (metrics != null) {
+			metrics.resourceTriple();
+		}
 
 		Node predicateNode = NodeFactory.createURI(predicate);
 		Node subjectNode = null;
@@ -119,6 +232,9 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 
 
 	final public void createTriple(String subject, String predicate, Node objectNode) {
+		if (metrics != null) {
+			metrics.resourceTriple();
+		}
 
 		Node predicateNode = NodeFactory.createURI(predicate);
 		Node subjectNode = null;
@@ -135,35 +251,23 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 			return;
 		}
 
+		if (metrics != null) {
+			metrics.literalTriple();
+		}
+
 		Node predicateNode = NodeFactory.createURI(predicate);
 		Node subjectNode = null;
 
 		subjectNode = getNode(subject);
 
-		Node literal = null;
+		RDFDatatype datatype = null;
 		if (builder.autoTypeLiterals) {
+			datatype = datatype(LiteralClassifier.classify(objectLiteral));
+		}
 
-			try {
-				Integer.parseInt(objectLiteral);
-				literal = NodeFactory.createLiteral(objectLiteral, XSDDatatype.XSDinteger);
-			} catch (NumberFormatException e) {
-				try {
-					Double.parseDouble(objectLiteral);
-					literal = NodeFactory.createLiteral(objectLiteral, XSDDatatype.XSDdecimal);
-				} catch (NumberFormatException e2) {
-					try {
-						LocalDateTime.parse(objectLiteral, DateTimeFormatter.ISO_DATE_TIME);
-						literal = NodeFactory.createLiteral(objectLiteral, XSDDatatype.XSDdateTime);
-					} catch (DateTimeParseException e3) {
-						try {
-							LocalDate.parse(objectLiteral, DateTimeFormatter.ISO_DATE);
-							literal = NodeFactory.createLiteral(objectLiteral, XSDDatatype.XSDdate);
-						} catch (DateTimeParseException e4) {
-							literal = NodeFactory.createLiteral(objectLiteral, null, false);
-						}
-					}
-				}
-			}
+		Node literal;
+		if (datatype != null) {
+			literal = NodeFactory.createLiteral(objectLiteral, datatype);
 		} else {
 			literal = NodeFactory.createLiteral(objectLiteral, null, false);
 		}
@@ -174,12 +278,33 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 
 	}
 
+	private static RDFDatatype datatype(LiteralClassifier.Type type) {
+		switch (type) {
+			case integer:
+				return XSDDatatype.XSDinteger;
+			case decimal:
+				return XSDDatatype.XSDdecimal;
+			case xsdDouble:
+				return XSDDatatype.XSDdouble;
+			case dateTime:
+				return XSDDatatype.XSDdateTime;
+			case date:
+				return XSDDatatype.XSDdate;
+			default:
+				return null;
+		}
+	}
+
 
 	final public void createTripleLiteral(String subject, String predicate, String objectLiteral, RDFDatatype datatype) {
 		if (objectLiteral == null) {
 			return;
 		}
 
+		if (metrics != null) {
+			metrics.literalTriple();
+		}
+
 		Node predicateNode = NodeFactory.createURI(predicate);
 		Node subjectNode = null;
 
@@ -194,6 +319,9 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 
 
 	final public void createTripleLiteral(String subject, String predicate, long objectLong) {
+		if (metrics != null) {
+			metrics.literalTriple();
+		}
 
 		Node predicateNode = NodeFactory.createURI(predicate);
 		Node subjectNode = null;
@@ -207,6 +335,9 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 	}
 
 	final public void createList(String subject, String predicate, List<Object> mixedContent) {
+		if (metrics != null) {
+			metrics.list();
+		}
 
 		Node predicateNode = NodeFactory.createURI(predicate);
 		Node subjectNode = getNode(subject);
@@ -227,10 +358,10 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 
 					Element objectElement = (Element) content;
 
-					if (isBlankNode(objectElement.uri)) {
-						return NodeFactory.createBlankNode(objectElement.uri);
+					if (isBlankNode(objectElement.uri())) {
+						return NodeFactory.createBlankNode(objectElement.uri());
 					} else {
-						return NodeFactory.createURI(objectElement.uri);
+						return NodeFactory.createURI(objectElement.uri());
 					}
 
 				} else {
@@ -284,6 +415,8 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 	@Override
 	public void endDocument() throws SAXException {
 
+		closeDelayedElementSpill();
+
 		notDone = false;
 
 		try {
@@ -293,6 +426,10 @@ final class AdvancedSaxHandlerJena extends AdvancedSaxHandler<Node, RDFDatatype>
 			// print and ignore
 			System.out.println(e.getMessage());
 		}
+
+		if (streamException != null) {
+			throw new SAXException(streamException);
+		}
 	}
 
 }
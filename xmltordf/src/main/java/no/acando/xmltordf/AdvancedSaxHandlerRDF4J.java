@@ -27,24 +27,30 @@ import org.eclipse.rdf4j.model.vocabulary.RDF;
 import org.eclipse.rdf4j.model.vocabulary.XMLSchema;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.rio.RDFHandler;
 import org.eclipse.rdf4j.sail.NotifyingSailConnection;
 import org.eclipse.rdf4j.sail.memory.MemoryStore;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 
 	Repository repository;
+
+	// set when converting straight into a caller supplied handler instead of a repository
+	private final RDFHandler rdfHandler;
+	private final ConcurrentLinkedQueue<String[]> pendingPrefixes = new ConcurrentLinkedQueue<>();
+	private volatile RuntimeException rdfHandlerException;
+
 	private BlockingQueue<Statement> queue;
-	private boolean notDone = true;
+	private volatile boolean notDone = true;
+	private volatile boolean aborted = false;
 	private Thread repoThread;
 	final static private SimpleValueFactory valueFactory = SimpleValueFactory.getInstance();
 
@@ -58,7 +64,11 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 	AdvancedSaxHandlerRDF4J(Builder.AdvancedRDF4J builder) {
 		super(builder);
 
-		queue = new CustomBlockingQueue<>(builder.buffer);
+		queue = new CustomBlockingQueue<>(builder.buffer, builder.waitStrategy, builder.metrics);
+		if (builder.metrics != null) {
+			builder.metrics.queue(queue);
+		}
+		rdfHandler = null;
 
 		MemoryStore memoryStore = new MemoryStore();
 		memoryStore.initialize();
@@ -71,12 +81,19 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 				NotifyingSailConnection connection = memoryStore.getConnection();
 				connection.begin(IsolationLevels.NONE);
 
+				List<Statement> batch = new ArrayList<>(builder.buffer);
+
 				while (notDone || !queue.isEmpty()) {
 					try {
-						Statement take = queue.take();
-						if (take != EndOfFileStatement) {
-							connection.addStatement(take.getSubject(), take.getPredicate(), take.getObject());
+						batch.add(queue.take());
+						queue.drainTo(batch);
+
+						for (Statement statement : batch) {
+							if (statement != EndOfFileStatement) {
+								connection.addStatement(statement.getSubject(), statement.getPredicate(), statement.getObject());
+							}
 						}
+						batch.clear();
 
 					} catch (InterruptedException interruptedException) {
 						//print and ignore
@@ -99,9 +116,117 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 		repoThread.start();
 	}
 
+	AdvancedSaxHandlerRDF4J(Builder.AdvancedRDF4J builder, RDFHandler rdfHandler) {
+		super(builder);
+
+		queue = new CustomBlockingQueue<>(builder.buffer, builder.waitStrategy, builder.metrics);
+		if (builder.metrics != null) {
+			builder.metrics.queue(queue);
+		}
+		this.rdfHandler = rdfHandler;
+
+		this.builder = builder;
+		repoThread = new Thread() {
+			@Override
+			public void run() {
+
+				try {
+					rdfHandler.startRDF();
+					rdfHandler.handleNamespace("xsd", XMLSchema.NAMESPACE);
+				} catch (RuntimeException e) {
+					rdfHandlerException = e;
+				}
+
+				List<Statement> batch = new ArrayList<>(builder.buffer);
+
+				while (notDone || !queue.isEmpty()) {
+					try {
+						batch.add(queue.take());
+						queue.drainTo(batch);
+
+						sendToRdfHandler(batch);
+						batch.clear();
+
+					} catch (InterruptedException interruptedException) {
+						//print and ignore
+						System.out.println(interruptedException.getMessage());
+					}
+				}
+
+				if (rdfHandlerException == null && !aborted) {
+					try {
+						sendPendingPrefixes();
+						rdfHandler.endRDF();
+					} catch (RuntimeException e) {
+						rdfHandlerException = e;
+					}
+				}
+
+				if ((rdfHandlerException != null || aborted) && rdfHandler instanceof BatchLoaderRDF4J) {
+					((BatchLoaderRDF4J) rdfHandler).abort();
+				}
+
+			}
+		};
+
+		repoThread.start();
+	}
+
+	private void sendToRdfHandler(List<Statement> batch) {
+		if (rdfHandlerException != null) {
+			// keep draining the queue so that the parser is not blocked, the exception is thrown from endDocument
+			return;
+		}
+
+		try {
+			// prefixes are added before the statements that use them are put on the queue
+			sendPendingPrefixes();
+
+			for (Statement statement : batch) {
+				if (statement != EndOfFileStatement) {
+					rdfHandler.handleStatement(statement);
+				}
+			}
+		} catch (RuntimeException e) {
+			rdfHandlerException = e;
+		}
+	}
+
+	private void sendPendingPrefixes() {
+		String[] prefix;
+		while ((prefix = pendingPrefixes.poll()) != null) {
+			rdfHandler.handleNamespace(prefix[0], prefix[1]);
+		}
+	}
+
+	@Override
+	void prefixMappingAdded(String prefix, String uri) {
+		if (rdfHandler != null) {
+			pendingPrefixes.add(new String[]{prefix, uri});
+		}
+	}
+
+	/**
+	 * Stops the thread reading from the queue after the conversion has failed. Statements not yet committed to the
+	 * handler are rolled back if the handler supports it.
+	 */
+	void abort() {
+		closeDelayedElementSpill();
+		aborted = true;
+		notDone = false;
+
+		try {
+			queue.put(EndOfFileStatement);
+			repoThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	@Override
 	public void fatalError(SAXParseException e) throws SAXException {
 
+		aborted = true;
 		notDone = false;
 		try {
 			queue.put(EndOfFileStatement);
@@ -115,6 +240,9 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 	}
 
 	final public void createTriple(String subject, String predicate, String object) {
+		if (metrics != null) {
+			metrics.resourceTriple();
+		}
 
 		IRI predicateNode = valueFactory.createIRI(predicate);
 		Resource subjectNode = getResource(subject);
@@ -126,6 +254,9 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 	}
 
 	final public void createTriple(String subject, String predicate, IRI objectNode) {
+		if (metrics != null) {
+			metrics.resourceTriple();
+		}
 
 		IRI predicateNode = valueFactory.createIRI(predicate);
 		Resource subjectNode = getResource(subject);
@@ -139,6 +270,10 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 			return;
 		}
 
+		if (metrics != null) {
+			metrics.literalTriple();
+		}
+
 		IRI predicateNode = valueFactory.createIRI(predicate);
 		Resource subjectNode = getResource(subject);
 
@@ -153,35 +288,22 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 			return;
 		}
 
+		if (metrics != null) {
+			metrics.literalTriple();
+		}
+
 		IRI predicateNode = valueFactory.createIRI(predicate);
 		Resource subjectNode = getResource(subject);
-		Literal literal = null;
-
+		IRI datatype = null;
 		if (builder.autoTypeLiterals) {
-			try {
-				Integer.parseInt(objectLiteral);
-				literal = valueFactory.createLiteral(objectLiteral, XMLSchema.INTEGER);
-			} catch (NumberFormatException e) {
-				try {
-					Double.parseDouble(objectLiteral);
-					literal = valueFactory.createLiteral(objectLiteral, XMLSchema.DECIMAL);
-				} catch (NumberFormatException e2) {
-					try {
-						LocalDateTime.parse(objectLiteral, DateTimeFormatter.ISO_DATE_TIME);
-						literal = valueFactory.createLiteral(objectLiteral, XMLSchema.DATETIME);
-					} catch (DateTimeParseException e3) {
-						try {
-							LocalDate.parse(objectLiteral, DateTimeFormatter.ISO_DATE);
-							literal = valueFactory.createLiteral(objectLiteral, XMLSchema.DATE);
-						} catch (DateTimeParseException e4) {
-							literal = valueFactory.createLiteral(objectLiteral);
-						}
-					}
-				}
-			}
+			datatype = datatype(LiteralClassifier.classify(objectLiteral));
+		}
+
+		Literal literal;
+		if (datatype != null) {
+			literal = valueFactory.createLiteral(objectLiteral, datatype);
 		} else {
 			literal = valueFactory.createLiteral(objectLiteral);
-
 		}
 
 
@@ -190,7 +312,27 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 
 	}
 
+	private static IRI datatype(LiteralClassifier.Type type) {
+		switch (type) {
+			case integer:
+				return XMLSchema.INTEGER;
+			case decimal:
+				return XMLSchema.DECIMAL;
+			case xsdDouble:
+				return XMLSchema.DOUBLE;
+			case dateTime:
+				return XMLSchema.DATETIME;
+			case date:
+				return XMLSchema.DATE;
+			default:
+				return null;
+		}
+	}
+
 	final public void createTripleLiteral(String subject, String predicate, long objectLong) {
+		if (metrics != null) {
+			metrics.literalTriple();
+		}
 
 		IRI predicateNode = valueFactory.createIRI(predicate);
 		Resource subjectNode = getResource(subject);
@@ -204,6 +346,9 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 	}
 
 	final public void createList(String subject, String predicate, List<Object> mixedContent) {
+		if (metrics != null) {
+			metrics.list();
+		}
 
 		IRI predicateNode = valueFactory.createIRI(predicate);
 		Resource subjectNode = getResource(subject);
@@ -221,10 +366,10 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 
 				} else if (content instanceof Element) {
 					Element objectElement = (Element) content;
-					if (!objectElement.uri.startsWith("_:")) {
-						return valueFactory.createIRI(objectElement.uri);
+					if (!objectElement.uri().startsWith("_:")) {
+						return valueFactory.createIRI(objectElement.uri());
 					} else {
-						return valueFactory.createBNode(objectElement.uri);
+						return valueFactory.createBNode(objectElement.uri());
 					}
 
 				} else {
@@ -260,6 +405,8 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 	@Override
 	final public void endDocument() throws SAXException {
 
+		closeDelayedElementSpill();
+
 		notDone = false;
 
 		try {
@@ -273,6 +420,10 @@ final class AdvancedSaxHandlerRDF4J extends AdvancedSaxHandler<IRI, IRI> {
 		} catch (InterruptedException interruptedException) {
 			throw new RuntimeException(interruptedException);
 		}
+
+		if (rdfHandlerException != null) {
+			throw new SAXException(rdfHandlerException);
+		}
 	}
 
 	private static Resource getResource(String subject) {
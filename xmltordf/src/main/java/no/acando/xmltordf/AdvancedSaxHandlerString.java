@@ -18,150 +18,139 @@ package no.acando.xmltordf;
 
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 import java.util.List;
 
 
 final class AdvancedSaxHandlerString extends AdvancedSaxHandler<String, String> {
-	private final PrintStream out;
+
+	private static final String XSD_INTEGER = XSD + "integer";
+	private static final String XSD_DECIMAL = XSD + "decimal";
+	private static final String XSD_DOUBLE = XSD + "double";
+	private static final String XSD_DATE_TIME = XSD + "dateTime";
+	private static final String XSD_DATE = XSD + "date";
+	private static final String XSD_LONG = XSD + "long";
+
+	private final NTriplesWriter out;
+
+	// false when converting a stream of documents into the same output, which is closed with close()
+	boolean closeAtEndDocument = true;
 
 
 	AdvancedSaxHandlerString(OutputStream out, Builder.AdvancedStream builder) {
+		this(out, builder, NTriplesWriter.newBuffer());
+	}
+
+	AdvancedSaxHandlerString(OutputStream out, Builder.AdvancedStream builder, byte[] buffer) {
 		super(builder);
 
-		try {
-			this.out = new PrintStream(out, false, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException("utf8 encoding could niot be found");
-		}
+		this.out = new NTriplesWriter(out, buffer);
 
 	}
 
 	final public void createTriple(String subject, String predicate, String object) {
-		boolean objectIsBlank = isBlankNode(object);
-
-		if (isBlankNode(subject)) {
-			if (objectIsBlank) {
-				out.println(subject + " <" + predicate + "> " + object + '.');
-			} else {
-				out.println(subject + " <" + predicate + "> <" + object + ">.");
-			}
-		} else {
-			if (objectIsBlank) {
-				out.println('<' + subject + "> <" + predicate + "> " + object + '.');
-			} else {
-				out.println('<' + subject + "> <" + predicate + "> <" + object + ">.");
-			}
+		if (metrics != null) {
+			metrics.resourceTriple();
 		}
 
+		out.triple(subject, predicate, object);
 	}
 
 	final public void createTripleLiteral(String subject, String predicate, String objectLiteral) {
+		if (metrics != null) {
+			metrics.literalTriple();
+		}
 
-		objectLiteral = objectLiteral
-			.replace("\\", "\\\\")
-			.replace("\"", "\\\"");
-
-		String datatype = "";
+		String datatype = null;
 
 		if (builder.autoTypeLiterals) {
-			try {
-				Integer.parseInt(objectLiteral);
-				datatype = "^^<" + XSD + "integer>";
-			} catch (NumberFormatException e) {
-				try {
-					Double.parseDouble(objectLiteral);
-					datatype = "^^<" + XSD + "decimal>";
-				} catch (NumberFormatException e2) {
-					try {
-						LocalDateTime.parse(objectLiteral, DateTimeFormatter.ISO_DATE_TIME);
-						datatype = "^^<" + XSD + "dateTime>";
-					} catch (DateTimeParseException e3) {
-						try {
-							LocalDate.parse(objectLiteral, DateTimeFormatter.ISO_DATE);
-							datatype = "^^<" + XSD + "date>";
-						} catch (DateTimeParseException e4) {
-							//this catch block should be empty!
-						}
-					}
-				}
-			}
+			datatype = datatype(LiteralClassifier.classify(objectLiteral));
 		}
 
-		if (!isBlankNode(subject)) {
-			out.println('<' + subject + "> <" + predicate + "> \"\"\"" + objectLiteral + "\"\"\"" + datatype + " .");
-		} else {
-			out.println(subject + " <" + predicate + "> \"\"\"" + objectLiteral + "\"\"\"" + datatype + " .");
-		}
+		out.tripleLiteral(subject, predicate, objectLiteral, datatype);
 
 	}
 
-	final public void createTripleLiteral(String subject, String predicate, long objectLong) {
+	private static String datatype(LiteralClassifier.Type type) {
+		switch (type) {
+			case integer:
+				return XSD_INTEGER;
+			case decimal:
+				return XSD_DECIMAL;
+			case xsdDouble:
+				return XSD_DOUBLE;
+			case dateTime:
+				return XSD_DATE_TIME;
+			case date:
+				return XSD_DATE;
+			default:
+				return null;
+		}
+	}
 
-		if (!isBlankNode(subject)) {
-			out.println('<' + subject + "> <" + predicate + "> \"" + objectLong + "\"^^<http://www.w3.org/2001/XMLSchema#long>" + " .");
-		} else {
-			out.println(subject + " <" + predicate + "> \"" + objectLong + "\"^^<http://www.w3.org/2001/XMLSchema#long>" + " .");
+	final public void createTripleLiteral(String subject, String predicate, long objectLong) {
+		if (metrics != null) {
+			metrics.literalTriple();
 		}
 
+		out.tripleLiteral(subject, predicate, objectLong, XSD_LONG);
 	}
 
 	final public void createList(String subject, String predicate, List<Object> mixedContent) {
-		predicate = '<' + predicate + '>';
-		if (!isBlankNode(subject)) {
-			subject = '<' + subject + '>';
+		if (metrics != null) {
+			metrics.list();
 		}
 
-		StringBuilder stringBuilder = new StringBuilder(subject + ' ' + predicate + " (");
+		out.resource(subject);
+		out.space();
+		out.iri(predicate);
+		out.space();
+		out.raw('(');
 
-		mixedContent.forEach(content -> {
+		for (Object content : mixedContent) {
 			if (content instanceof String) {
-				String objectLiteral = (String) content;
-				objectLiteral = objectLiteral
-					.replace("\\", "\\\\")
-					.replace("\"", "\\\"");
-				stringBuilder.append("\"\"\"" + objectLiteral + "\"\"\" ");
+				out.literal((String) content);
 			} else if (content instanceof Element) {
-				Element objectElement = (Element) content;
-				if (isBlankNode(objectElement.uri)) {
-					stringBuilder.append(objectElement.uri + ' ');
-				} else {
-					stringBuilder.append('<' + objectElement.uri + "> ");
-				}
+				out.resource(((Element) content).uri());
 			} else {
 				throw new IllegalStateException("Unknown type of: " + content.getClass().toString());
 			}
+			out.space();
+		}
 
-		});
-
-		out.println(stringBuilder.append(").").toString());
+		out.raw(')');
+		out.endOfTriple();
 
 	}
 
 	final public void createTripleLiteral(String subject, String predicate, String objectLiteral, String dataType) {
-
-		objectLiteral = objectLiteral
-			.replace("\\", "\\\\")
-			.replace("\"", "\\\"");
-
-		if (isBlankNode(subject)) {
-			out.println(subject + " <" + predicate + "> \"\"\"" + objectLiteral + "\"\"\"^^<" + dataType + "> .");
-		} else {
-			out.println('<' + subject + "> <" + predicate + "> \"\"\"" + objectLiteral + "\"\"\"^^<" + dataType + "> .");
+		if (metrics != null) {
+			metrics.literalTriple();
 		}
 
+		out.tripleLiteral(subject, predicate, objectLiteral, dataType);
+	}
+
+	void writeOutput(ByteArrayOutputStream output) {
+		out.append(output);
 	}
 
 	@Override
 	final public void endDocument() throws SAXException {
 
+		closeDelayedElementSpill();
+
+		if (closeAtEndDocument) {
+			out.close();
+		}
+	}
+
+	void flush() {
 		out.flush();
+	}
+
+	void close() {
 		out.close();
 	}
 
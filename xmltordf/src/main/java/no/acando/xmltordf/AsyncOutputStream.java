@@ -0,0 +1,216 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fills one large buffer while a writer thread writes the previous ones to the underlying stream, so a slow disk or
+ * pipe does not stall the parser. The number of buffers is fixed, the parser waits for the writer when all of them are
+ * full.
+ */
+final class AsyncOutputStream extends OutputStream {
+
+	static final int BUFFER_SIZE = 1 << 20;
+
+	private static final Block FLUSH = new Block(null, 0);
+	private static final Block CLOSE = new Block(null, 0);
+
+	private final OutputStream out;
+	private final BlockingQueue<Block> written;
+	private final BlockingQueue<byte[]> free;
+	private final Thread writer;
+
+	private volatile Exception failure;
+
+	private byte[] buffer;
+	private int position = 0;
+	private boolean closed = false;
+
+	AsyncOutputStream(OutputStream out, int buffers) {
+		if (buffers < 2) {
+			throw new IllegalArgumentException("at least two buffers are needed");
+		}
+
+		this.out = out;
+		// room for every buffer and the flush and close markers, so the writer never waits to hand a buffer back
+		this.written = new ArrayBlockingQueue<>(buffers + 2);
+		this.free = new ArrayBlockingQueue<>(buffers);
+
+		buffer = new byte[BUFFER_SIZE];
+		for (int i = 1; i < buffers; i++) {
+			free.add(new byte[BUFFER_SIZE]);
+		}
+
+		writer = new Thread(this::writeBlocks, "xmltordf-output");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (position == buffer.length) {
+			handOver();
+		}
+		buffer[position++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (position == buffer.length) {
+				handOver();
+			}
+			int length = Math.min(len, buffer.length - position);
+			System.arraycopy(b, off, buffer, position, length);
+			position += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	/**
+	 * Hands the buffer to the writer thread, which flushes the underlying stream after writing it.
+	 */
+	@Override
+	public void flush() throws IOException {
+		handOver();
+		put(FLUSH);
+	}
+
+	/**
+	 * Waits for the writer thread to write everything and close the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		handOver();
+		put(CLOSE);
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+
+		checkFailure();
+	}
+
+	/**
+	 * Stops the writer thread after a failed conversion, the underlying stream is left open.
+	 */
+	void abort() {
+		closed = true;
+		writer.interrupt();
+
+		try {
+			// the underlying stream may be aborted next, so the writer must be done with it
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void handOver() throws IOException {
+		checkFailure();
+		if (position == 0) {
+			return;
+		}
+
+		put(new Block(buffer, position));
+
+		try {
+			buffer = free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		position = 0;
+	}
+
+	private void put(Block block) throws IOException {
+		try {
+			written.put(block);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Writing the output failed", failure);
+		}
+	}
+
+	// runs on the writer thread, after a failure the buffers are still handed back so the parser does not wait forever
+	private void writeBlocks() {
+		try {
+			while (true) {
+				Block block = written.take();
+
+				if (block == CLOSE) {
+					try {
+						if (failure == null) {
+							out.close();
+						}
+					} catch (IOException | RuntimeException e) {
+						failure = e;
+					}
+					return;
+				}
+
+				try {
+					if (failure == null) {
+						if (block == FLUSH) {
+							out.flush();
+						} else {
+							out.write(block.bytes, 0, block.length);
+						}
+					}
+				} catch (IOException | RuntimeException e) {
+					failure = e;
+				} finally {
+					if (block.bytes != null) {
+						free.put(block.bytes);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// aborted
+		}
+	}
+
+	private static class Block {
+		final byte[] bytes;
+		final int length;
+
+		Block(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * Loads triples into the default graph of an existing dataset, e.g. a TDB dataset, committing a write transaction
+ * every commitBatchSize triples. Jena transactions belong to a thread, so every method has to be called from the
+ * same thread.
+ */
+final class BatchLoaderJena implements StreamRDF {
+
+	private final Dataset dataset;
+	private final boolean transactional;
+	private final int commitBatchSize;
+
+	private Graph graph;
+	private int triplesInTransaction = 0;
+
+	BatchLoaderJena(Dataset dataset, int commitBatchSize) {
+		this.dataset = dataset;
+		this.transactional = dataset.supportsTransactions();
+		this.commitBatchSize = commitBatchSize;
+	}
+
+	@Override
+	public void start() {
+		begin();
+	}
+
+	@Override
+	public void triple(Triple triple) {
+		graph.add(triple);
+		triplesInTransaction++;
+
+		if (commitBatchSize > 0 && triplesInTransaction >= commitBatchSize) {
+			commit();
+			begin();
+		}
+	}
+
+	@Override
+	public void quad(Quad quad) {
+		triple(quad.asTriple());
+	}
+
+	@Override
+	public void base(String base) {
+
+	}
+
+	@Override
+	public void prefix(String prefix, String iri) {
+		dataset.getDefaultModel().setNsPrefix(prefix, iri);
+	}
+
+	@Override
+	public void finish() {
+		commit();
+	}
+
+	/**
+	 * Rolls back the triples added since the last commit.
+	 */
+	void abort() {
+		if (transactional && dataset.isInTransaction()) {
+			dataset.abort();
+			dataset.end();
+		}
+	}
+
+	private void begin() {
+		if (transactional) {
+			dataset.begin(ReadWrite.WRITE);
+		}
+		// the graph is looked up again inside every transaction
+		graph = dataset.getDefaultModel().getGraph();
+		triplesInTransaction = 0;
+	}
+
+	private void commit() {
+		if (transactional) {
+			dataset.commit();
+			dataset.end();
+		}
+	}
+}
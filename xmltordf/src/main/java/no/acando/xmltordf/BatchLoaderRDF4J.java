@@ -0,0 +1,86 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.rio.RDFHandler;
+
+/**
+ * Loads statements into an existing repository, e.g. a NativeStore, committing a transaction every commitBatchSize
+ * statements.
+ */
+final class BatchLoaderRDF4J implements RDFHandler {
+
+	private final Repository repository;
+	private final int commitBatchSize;
+
+	private RepositoryConnection connection;
+	private int statementsInTransaction = 0;
+
+	BatchLoaderRDF4J(Repository repository, int commitBatchSize) {
+		this.repository = repository;
+		this.commitBatchSize = commitBatchSize;
+	}
+
+	@Override
+	public void startRDF() {
+		connection = repository.getConnection();
+		connection.begin();
+	}
+
+	@Override
+	public void handleStatement(Statement statement) {
+		connection.add(statement);
+		statementsInTransaction++;
+
+		if (commitBatchSize > 0 && statementsInTransaction >= commitBatchSize) {
+			connection.commit();
+			connection.begin();
+			statementsInTransaction = 0;
+		}
+	}
+
+	@Override
+	public void handleNamespace(String prefix, String uri) {
+		connection.setNamespace(prefix, uri);
+	}
+
+	@Override
+	public void handleComment(String comment) {
+
+	}
+
+	@Override
+	public void endRDF() {
+		connection.commit();
+		connection.close();
+	}
+
+	/**
+	 * Rolls back the statements added since the last commit.
+	 */
+	void abort() {
+		if (connection != null && connection.isOpen()) {
+			if (connection.isActive()) {
+				connection.rollback();
+			}
+			connection.close();
+		}
+	}
+}
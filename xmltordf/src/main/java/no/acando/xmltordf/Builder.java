@@ -18,10 +18,15 @@ package no.acando.xmltordf;
 
 import org.apache.jena.datatypes.RDFDatatype;
 import org.apache.jena.graph.Node;
+import org.apache.jena.query.Dataset;
 import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.repository.Repository;
 
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public class Builder {
 	public static XmlPath createPath(String... path) {
@@ -114,6 +119,9 @@ public class Builder {
 		Map<String, StringTransformTwoValue> renameElementFunctionMap = null;
 		ReverseElementTree renameElementPathMap = null;
 
+		ConversionMetrics metrics = null;
+		XmlTokenizer tokenizer = null;
+
 
 		/**
 		 * @param namespace Override all namespaces with this namespace
@@ -332,6 +340,30 @@ public class Builder {
 			return value;
 
 		}
+
+		/**
+		 * @param metrics the counters to update, or null to not collect metrics *default: null*
+		 * @return returns this builder
+		 * @description Collect metrics while converting: elements parsed, triples created, bytes read and, for Jena and RDF4J,
+		 * how long the parser and the thread writing to the Dataset or Repository wait for each other. The ConversionMetrics
+		 * object can be registered with JMX or polled while the conversion is running.
+		 */
+		public T setMetrics(ConversionMetrics metrics) {
+			this.metrics = metrics;
+			return (T) this;
+		}
+
+		/**
+		 * @param tokenizer reads the XML for the converter, XmlTokenizer.sax() or XmlTokenizer.stax() *default: XmlTokenizer.sax()*
+		 * @return returns this builder
+		 * @description Choose the parser that reads the XML. The JDK SAX parser is used by default. XmlTokenizer.stax() uses the
+		 * StAX parser on the classpath, which passes text on without copying it and may be faster with an implementation like
+		 * Woodstox. Other parsers can be plugged in by implementing XmlTokenizer.
+		 */
+		public T tokenizer(XmlTokenizer tokenizer) {
+			this.tokenizer = tokenizer;
+			return (T) this;
+		}
 	}
 
 	static private class DefaultWithAddIndex<T extends DefaultWithAddIndex<T>> extends Default<T> {
@@ -453,6 +485,22 @@ public class Builder {
 	}
 
 	static public class Fast extends Default<Fast> {
+		int gzipOutputThreads = 0;
+
+		/**
+		 * @param threads number of threads compressing the output, 0 for uncompressed output *default: 0*
+		 * @return returns this builder
+		 * @description Write the output as gzip. The output is compressed in blocks on a pool of threads, so compression costs
+		 * far less time than wrapping the output stream in a GZIPOutputStream. Gzip compressed input is detected and decompressed
+		 * without any configuration.
+		 */
+		public Fast gzipOutput(int threads) {
+			if (threads < 0) {
+				throw new IllegalArgumentException("threads must not be negative");
+			}
+			gzipOutputThreads = threads;
+			return this;
+		}
 
 		public XmlToRdfFast build() {
 			return new XmlToRdfFast(this);
@@ -468,6 +516,9 @@ public class Builder {
 		boolean convertComplexElementsWithOnlyAttributesAndSimpleTypeChildrenToPredicate;
 		boolean autoTypeLiterals;
 		String uuidBasedIdInsteadOfBlankNodes;
+		int spillDelayedElementsThreshold = 0;
+		Path spillDirectory = null;
+		boolean compositeIdPrescan = false;
 
 		private Map<String, ParentChild> invertPredicate = null;
 		private HashMapNoOverwriteWithDefaultTwoLevels<String, String, String> insertPredicateBetween = null;
@@ -480,14 +531,21 @@ public class Builder {
 		boolean resolveAsQnameInAttributeValue;
 		boolean xsiTypeSupport;
 
-		private Map<String, ComplexClassTransform> complexElementTransformAtEndOfElement = null;
-		private Map<String, ComplexClassTransform> complexElementTransformAtStartOfElement = null;
+		Map<String, ComplexClassTransform> complexElementTransformAtEndOfElement = null;
+		Map<String, ComplexClassTransform> complexElementTransformAtStartOfElement = null;
 		Map<String, String> useElementAsPredicateMap = null;
 
 		Map<String, String> skipElementMap = null;
 		Map<String, String> forcedMixedContentMap = null;
+		boolean detectMixedContent = true;
 		Map<String, CompositeId<T>> compositeIdMap;
 		boolean useHashmapForChildren;
+		// children a composite id reads from its parent, the only children looked up by name
+		Set<String> childrenForCompositeId = new HashSet<>();
+
+		// compiled from the maps above by build()
+		private Map<String, ElementRules<ResourceType, DataType>> elementRules;
+		private ElementRules<ResourceType, DataType> defaultElementRules;
 
 
 		/**
@@ -690,7 +748,7 @@ public class Builder {
 		/**
 		 * @param enabled true for enabled
 		 * @return returns this builder
-		 * @description Detects the datatype of simple elements by analyzing their content. Currently support for long, int, double, date and datetime.
+		 * @description Detects the datatype of simple elements by analyzing their content. Currently support for integer, decimal, double, date and datetime.
 		 * @xml <people xmlns="http://example.org/">
 		 * <person idNumber="1234" married="true" weight="80.5">
 		 * <name>John Doe</name>
@@ -954,6 +1012,31 @@ public class Builder {
 			return (T) this;
 		}
 
+		/**
+		 * @param enabled `true` to detect mixed content *default: true*
+		 * @return returns this builder
+		 * @description Detect elements that contain both text and child elements, and describe their content with
+		 * xmlToRdf:hasMixedContent. Text found after many children still needs all of them in the list, so every element
+		 * keeps its children until it ends. When turned off, text next to child elements is only kept in xmlToRdf:hasValue,
+		 * and an element only counts its children, so memory depends on the depth of the document rather than the width.
+		 * Elements from forceMixedContent(), useElementAsPredicate() and complex transforms at the end of the element
+		 * still keep their children.
+		 * @xml <document xmlns="http://example.org/">
+		 * <paragraph><b>Hello</b> <b>World</b>!</paragraph>
+		 * </document>
+		 * @exampleLabel Without mixed content detection
+		 * @exampleCommand Builder.getAdvancedBuilderStream()
+		 * .detectMixedContent(false)
+		 * .build()
+		 * @exampleLabel With mixed content detection
+		 * @exampleCommand Builder.getAdvancedBuilderStream()
+		 * .build()
+		 */
+		public T detectMixedContent(boolean enabled) {
+			detectMixedContent = enabled;
+			return (T) this;
+		}
+
 		/**
 		 * @param elementName The fully IRI of the element.
 		 * @return returns this builder
@@ -995,6 +1078,26 @@ public class Builder {
 			useHashmapForChildren = true;
 		}
 
+		@Override
+		public void useHashmapForChildren(String elementName) {
+			useHashmapForChildren = true;
+			childrenForCompositeId.add(elementName);
+		}
+
+		void compileElementRules() {
+			elementRules = ElementRules.compile(this);
+			defaultElementRules = ElementRules.defaultRules(this);
+		}
+
+		ElementRules<ResourceType, DataType> getElementRules(String type) {
+			if (elementRules == null) {
+				compileElementRules();
+			}
+
+			ElementRules<ResourceType, DataType> rules = elementRules.get(type);
+			return rules != null ? rules : defaultElementRules;
+		}
+
 		public interface BetweenWithWildcard<TT> {
 
 			TT between(String parent, String child);
@@ -1006,6 +1109,10 @@ public class Builder {
 			TT betweenSpecificParentAndAnyChild(String parent);
 		}
 
+		boolean hasInsertOrInvertPredicate() {
+			return insertPredicateBetween != null || invertPredicate != null;
+		}
+
 		boolean checkInvertPredicate(String predicate, String parent, String child) {
 			if (invertPredicate == null) {
 				return false;
@@ -1042,6 +1149,50 @@ public class Builder {
 			uuidBasedIdInsteadOfBlankNodes = baseNamespace;
 			return (T) this;
 		}
+		/**
+		 * @param threshold number of delayed elements to keep in memory per parent, 0 to never spill *default: 0*
+		 * @return returns this builder
+		 * @description Elements that can not be written until their parent has an identifier, like the children of an element with a
+		 * compositeId(...) or literal properties waiting for their parent to end, are kept in memory. With a threshold, any further delayed
+		 * elements of the same parent are written to a memory mapped scratch file in the temporary directory and read back when the
+		 * parent ends. Useful when the fields of a composite identifier come at the end of large elements.
+		 */
+		public T spillDelayedElements(int threshold) {
+			return spillDelayedElements(threshold, null);
+		}
+
+		/**
+		 * @param threshold number of delayed elements to keep in memory per parent, 0 to never spill *default: 0*
+		 * @param directory directory for the scratch file, null for the temporary directory
+		 * @return returns this builder
+		 * @description Same as spillDelayedElements(threshold), with the scratch file in the given directory.
+		 */
+		public T spillDelayedElements(int threshold, Path directory) {
+			if (threshold < 0) {
+				throw new IllegalArgumentException("threshold must not be negative");
+			}
+			spillDelayedElementsThreshold = threshold;
+			spillDirectory = directory;
+			return (T) this;
+		}
+
+		/**
+		 * @param enabled true to find the composite identifiers before converting *default: false*
+		 * @return returns this builder
+		 * @description Reads the input twice when compositeId(...) is used. The first pass only resolves the composite
+		 * identifiers, so the second pass knows the identifier of an element when it starts and writes its children straight
+		 * away instead of keeping them until the last field of the identifier has been read. Useful when the fields come at
+		 * the end of large elements. Only inputs that can be read twice are pre-scanned, which are Path, ByteBuffer,
+		 * FileInputStream and ByteArrayInputStream, other inputs are converted in a single pass. The functions given to
+		 * compositeId(...).mappedTo(...) run in both passes. Inputs are also converted in a single pass when the builder has
+		 * other functions that run for every element, which are rename functions, complex transforms, value transforms,
+		 * useAttributeForId(...) with a transform and mapTextInElementToUri(...) with a function.
+		 */
+		public T compositeIdPrescan(boolean enabled) {
+			compositeIdPrescan = enabled;
+			return (T) this;
+		}
+
 
 		/**
 		 * @param element  Full IRI of element
@@ -1126,16 +1277,6 @@ public class Builder {
 			return (T) this;
 		}
 
-		void doComplexTransformElementAtEndOfElement(Element element) {
-			if (complexElementTransformAtEndOfElement == null) {
-				return;
-			}
-			ComplexClassTransform complexClassTransform = complexElementTransformAtEndOfElement.get(element.getType());
-			if (complexClassTransform != null) {
-				complexClassTransform.transform(element);
-			}
-		}
-
 
 		/**
 		 * @param element   Full IRI of element
@@ -1184,16 +1325,6 @@ public class Builder {
 			return (T) this;
 		}
 
-		void doComplexTransformElementAtStartOfElement(Element element) {
-			if (complexElementTransformAtStartOfElement == null) {
-				return;
-			}
-			ComplexClassTransform complexClassTransform = complexElementTransformAtStartOfElement.get(element.getType());
-			if (complexClassTransform != null) {
-				complexClassTransform.transform(element);
-			}
-		}
-
 		/**
 		 * @param enabled true for enabled
 		 * @return returns this builder
@@ -1244,6 +1375,8 @@ public class Builder {
 
 	static public class AdvancedWithBuffer<ResourceType, Datatype, T extends AdvancedWithBuffer<ResourceType, Datatype, T>> extends Advanced<ResourceType, Datatype, T> {
 		int buffer = 1000;
+		WaitStrategy waitStrategy = WaitStrategy.park;
+		int commitBatchSize = 100000;
 
 		/**
 		 * @param size size of buffer *default: 1000*
@@ -1256,22 +1389,141 @@ public class Builder {
 			return (T) this;
 		}
 
+		/**
+		 * @param waitStrategy WaitStrategy.spin, WaitStrategy.yield or WaitStrategy.park *default: park*
+		 * @return returns this builder
+		 * @description Set what the parsing thread and the thread writing into the Jena Dataset or RDF4J Repository do while the
+		 * buffer is full or empty. `spin` busy waits and gives the lowest latency at the cost of a full core per thread, `yield` busy waits
+		 * but lets other threads run, `park` spins and yields briefly before parking the thread until there is work to do.
+		 */
+		public T setWaitStrategy(WaitStrategy waitStrategy) {
+			this.waitStrategy = waitStrategy;
+			return (T) this;
+		}
+
+		/**
+		 * @param size number of statements per transaction, 0 for a single transaction *default: 100000*
+		 * @return returns this builder
+		 * @description Set how many statements are written to an existing Jena Dataset or RDF4J Repository before the transaction is committed
+		 * and a new one is started. Only used together with setDataset(...) or setRepository(...). If the conversion fails, the statements
+		 * since the last commit are rolled back.
+		 */
+		public T setCommitBatchSize(int size) {
+			if (size < 0) {
+				throw new IllegalArgumentException("size must not be negative");
+			}
+			this.commitBatchSize = size;
+			return (T) this;
+		}
+
 	}
 
 	static public class AdvancedJena extends AdvancedWithBuffer<Node, RDFDatatype, AdvancedJena> {
+		Dataset dataset;
+
+		/**
+		 * @param dataset an existing dataset, e.g. from TDBFactory.createDataset(...)
+		 * @return returns this builder
+		 * @description Load the triples into the default graph of an existing dataset instead of a new in-memory dataset. Triples are written
+		 * in write transactions of setCommitBatchSize(...) triples if the dataset supports transactions.
+		 */
+		public AdvancedJena setDataset(Dataset dataset) {
+			this.dataset = dataset;
+			return this;
+		}
+
 		public XmlToRdfAdvancedJena build() {
+			compileElementRules();
 			return new XmlToRdfAdvancedJena(this);
 		}
 	}
 
 	static public class AdvancedRDF4J extends AdvancedWithBuffer<IRI, IRI, AdvancedRDF4J> {
+		Repository repository;
+
+		/**
+		 * @param repository an existing, initialized repository, e.g. a SailRepository with a NativeStore
+		 * @return returns this builder
+		 * @description Load the statements into an existing repository instead of a new in-memory repository. Statements are written
+		 * in transactions of setCommitBatchSize(...) statements.
+		 */
+		public AdvancedRDF4J setRepository(Repository repository) {
+			this.repository = repository;
+			return this;
+		}
+
 		public XmlToRdfAdvancedRDF4J build() {
+			compileElementRules();
 			return new XmlToRdfAdvancedRDF4J(this);
 		}
 	}
 
 	static public class AdvancedStream extends Advanced<String, String, AdvancedStream> {
+		int parallelThreads = 1;
+		String parallelRecordElement = null;
+		int gzipOutputThreads = 0;
+		int asyncOutputBuffers = 0;
+
+		/**
+		 * @param threads number of worker threads *default: 1*
+		 * @return returns this builder
+		 * @description Split the document at every child of the root element and convert the children on a pool of worker threads.
+		 * The output from the workers is written in document order. Useful for large files with many records under the root element.
+		 * Records are converted independently of each other, so the root element should not contain mixed content.
+		 */
+		public AdvancedStream parallel(int threads) {
+			return parallel(threads, null);
+		}
+
+		/**
+		 * @param threads       number of worker threads *default: 1*
+		 * @param recordElement Full IRI of the element to split the document on
+		 * @return returns this builder
+		 * @description Split the document at every occurrence of the record element and convert the records on a pool of worker threads.
+		 * The output from the workers is written in document order. Records are converted independently of each other, so the parent of
+		 * a record should not contain mixed content or be used as a predicate, and compositeId().fromParent() is not supported.
+		 * Records that can not be converted independently are converted on the parsing thread.
+		 */
+		public AdvancedStream parallel(int threads, String recordElement) {
+			if (threads < 1) {
+				throw new IllegalArgumentException("threads must be at least 1");
+			}
+			parallelThreads = threads;
+			parallelRecordElement = recordElement;
+			return this;
+		}
+
+		/**
+		 * @param threads number of threads compressing the output, 0 for uncompressed output *default: 0*
+		 * @return returns this builder
+		 * @description Write the output as gzip. The output is compressed in blocks on a pool of threads, so compression costs
+		 * far less time than wrapping the output stream in a GZIPOutputStream. Gzip compressed input is detected and decompressed
+		 * without any configuration.
+		 */
+		public AdvancedStream gzipOutput(int threads) {
+			if (threads < 0) {
+				throw new IllegalArgumentException("threads must not be negative");
+			}
+			gzipOutputThreads = threads;
+			return this;
+		}
+
+		/**
+		 * @param buffers number of 1 MB output buffers, at least 2, or 0 to write on the parsing thread *default: 0*
+		 * @return returns this builder
+		 * @description Write the output on a separate thread. The parser fills one buffer while the previous ones are written,
+		 * and waits when all the buffers are full. Useful when the output goes to a slow disk, a pipe or a network stream.
+		 */
+		public AdvancedStream asyncOutput(int buffers) {
+			if (buffers != 0 && buffers < 2) {
+				throw new IllegalArgumentException("buffers must be 0 or at least 2");
+			}
+			asyncOutputBuffers = buffers;
+			return this;
+		}
+
 		public XmlToRdfAdvancedStream build() {
+			compileElementRules();
 			return new XmlToRdfAdvancedStream(this);
 		}
 	}
@@ -1322,7 +1574,7 @@ public class Builder {
 
 	}
 
-	private static class HashMapNoOverwriteWithDefault<Key, Value> extends HashMapNoOverwrite<Key, Value> {
+	static class HashMapNoOverwriteWithDefault<Key, Value> extends HashMapNoOverwrite<Key, Value> {
 
 		Value defaultValue;
 
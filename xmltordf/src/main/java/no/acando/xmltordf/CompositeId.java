@@ -143,7 +143,7 @@ public class CompositeId<T extends UseHashmapForChildren> {
 
 	public ParentId<T> fromParent(String elementName) {
 
-		this.that.useHashmapForChildren();
+		this.that.useHashmapForChildren(elementName);
 
 		CompositeId<T> that = this;
 		return newName -> {
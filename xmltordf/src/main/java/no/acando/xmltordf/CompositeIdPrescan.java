@@ -0,0 +1,187 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * First pass of compositeIdPrescan(true). Runs the conversion without creating any triples and records every composite
+ * identifier by the index of its element. The second pass sets the identifiers when the elements start, so their
+ * children are written straight away instead of waiting for the last field of the identifier.
+ */
+final class CompositeIdPrescan<ResourceType, Datatype> extends AdvancedSaxHandler<ResourceType, Datatype> {
+
+	private final Ids ids = new Ids();
+	private final boolean sameBlankNodes;
+
+	private CompositeIdPrescan(Builder.Advanced<ResourceType, Datatype, ? extends Builder.Advanced> builder, boolean sameBlankNodes) {
+		super(builder, null);
+		this.sameBlankNodes = sameBlankNodes;
+	}
+
+	/**
+	 * Reads the input once and moves it back to where it started. Returns null when the pre-scan is not enabled, when
+	 * the builder has functions that would otherwise run in both passes, or when the input can not be read twice, which
+	 * is the case for anything but files, memory mapped inputs and byte arrays.
+	 *
+	 * @param sameBlankNodes false when the second pass labels blank nodes differently, in which case identifiers that
+	 *                       use the id of the parent are left to the second pass
+	 */
+	static <ResourceType, Datatype> Ids scan(XmlTokenizer tokenizer, InputStream in, Builder.Advanced<ResourceType, Datatype, ? extends Builder.Advanced> builder, SymbolTable symbolTable, boolean sameBlankNodes) throws ParserConfigurationException, SAXException, IOException {
+		if (!builder.compositeIdPrescan || builder.compositeIdMap == null || hasElementFunctions(builder)) {
+			return null;
+		}
+
+		CompositeIdPrescan<ResourceType, Datatype> prescan = new CompositeIdPrescan<>(builder, sameBlankNodes && builder.uuidBasedIdInsteadOfBlankNodes == null);
+		prescan.symbolTable = symbolTable;
+
+		// the tokenizer closes the input when it is done
+		InputStream uncloseable = new FilterInputStream(in) {
+			@Override
+			public void close() {
+
+			}
+		};
+
+		try {
+			if (in instanceof FileInputStream) {
+				FileChannel channel = ((FileInputStream) in).getChannel();
+				long position = channel.position();
+				tokenizer.parse(uncloseable, prescan);
+				channel.position(position);
+			} else if (in instanceof ByteArrayInputStream || in instanceof MappedInputStream) {
+				in.mark(0);
+				tokenizer.parse(uncloseable, prescan);
+				in.reset();
+			} else {
+				return null;
+			}
+		} finally {
+			prescan.closeDelayedElementSpill();
+		}
+
+		return prescan.ids;
+	}
+
+	// functions that may not be pure and that may change which elements get a composite id and what it is, running them
+	// in the first pass as well would call them twice for every element
+	private static boolean hasElementFunctions(Builder.Advanced<?, ?, ? extends Builder.Advanced> builder) {
+		return builder.renameElementFunctionMap != null
+			|| builder.complexElementTransformAtStartOfElement != null
+			|| builder.complexElementTransformAtEndOfElement != null
+			|| builder.transformForElementValueMap != null
+			|| builder.transformForAttributeValueMap != null
+			|| builder.useAttributedForIdMap != null
+			|| builder.elementTextToUriFunctionMap != null;
+	}
+
+	@Override
+	void compositeIdResolved(Element<ResourceType, Datatype> element) {
+		if (element.compositeId.parentId && !sameBlankNodes) {
+			return;
+		}
+		ids.add(element.index, element.uri);
+	}
+
+	@Override
+	boolean keepDelayedElement(Element<ResourceType, Datatype> parent, Element<ResourceType, Datatype> element) {
+		// elements waiting for their own id, and children that resolve the parent id of their parent when replayed
+		return element.uri() == null || parent.uri() == null && parent.compositeId != null && parent.compositeId.parentId;
+	}
+
+	@Override
+	void createTriple(String subject, String predicate, String object) {
+
+	}
+
+	@Override
+	void createTripleLiteral(String subject, String predicate, String objectLiteral) {
+
+	}
+
+	@Override
+	void createTripleLiteral(String subject, String predicate, long objectLong) {
+
+	}
+
+	@Override
+	void createList(String subject, String predicate, List<Object> mixedContent) {
+
+	}
+
+	@Override
+	void createTripleLiteral(String subject, String predicate, String objectLiteral, Datatype datatype) {
+
+	}
+
+	@Override
+	void createTriple(String uri, String hasValue, ResourceType resourceType) {
+
+	}
+
+	@Override
+	public void endDocument() throws SAXException {
+		closeDelayedElementSpill();
+	}
+
+	/**
+	 * The composite identifiers sorted by element index. Identifiers are resolved at the end of their last field, so
+	 * they are added almost in order and the few that are not are moved into place when added. Read by the parallel
+	 * workers at the same time, so lookups do not change anything.
+	 */
+	static final class Ids {
+		private long[] indexes = new long[16];
+		private String[] ids = new String[16];
+		private int size = 0;
+
+		private void add(long index, String id) {
+			if (size == indexes.length) {
+				indexes = Arrays.copyOf(indexes, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+
+			int position = size;
+			while (position > 0 && indexes[position - 1] > index) {
+				position--;
+			}
+			System.arraycopy(indexes, position, indexes, position + 1, size - position);
+			System.arraycopy(ids, position, ids, position + 1, size - position);
+			indexes[position] = index;
+			ids[position] = id;
+			size++;
+		}
+
+		/**
+		 * @return the identifier of the element with the given index, or null if the first pass did not resolve it
+		 */
+		String get(long index) {
+			int position = Arrays.binarySearch(indexes, 0, size, index);
+			return position >= 0 ? ids[position] : null;
+		}
+	}
+
+}
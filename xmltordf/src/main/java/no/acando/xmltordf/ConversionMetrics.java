@@ -0,0 +1,163 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for a running conversion. Set an instance on a builder with setMetrics(...) and read it from any thread,
+ * e.g. by registering it with JMX or by polling it from a Micrometer style registry. The counters keep counting
+ * across conversions, so one instance can be shared by all conversions with the same builder.
+ */
+public class ConversionMetrics implements ConversionMetricsMXBean {
+
+	private final LongAdder elements = new LongAdder();
+	private final LongAdder resourceTriples = new LongAdder();
+	private final LongAdder literalTriples = new LongAdder();
+	private final LongAdder lists = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder producerStallNanos = new LongAdder();
+	private final LongAdder consumerIdleNanos = new LongAdder();
+	private final LongAdder delayedElements = new LongAdder();
+
+	// queue between the parser and the Jena or RDF4J thread of the last conversion that was started
+	private volatile BlockingQueue<?> queue;
+
+	void element() {
+		elements.increment();
+	}
+
+	void resourceTriple() {
+		resourceTriples.increment();
+	}
+
+	void literalTriple() {
+		literalTriples.increment();
+	}
+
+	void list() {
+		lists.increment();
+	}
+
+	void bytesRead(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	void producerStalled(long nanos) {
+		producerStallNanos.add(nanos);
+	}
+
+	void consumerIdle(long nanos) {
+		consumerIdleNanos.add(nanos);
+	}
+
+	void delayedElementAdded() {
+		delayedElements.increment();
+	}
+
+	void delayedElementsCreated(int count) {
+		delayedElements.add(-count);
+	}
+
+	void queue(BlockingQueue<?> queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * @return number of XML elements parsed
+	 */
+	@Override
+	public long getElements() {
+		return elements.sum();
+	}
+
+	/**
+	 * @return number of triples created, where every rdf:List counts as one
+	 */
+	@Override
+	public long getTriples() {
+		return getResourceTriples() + getLiteralTriples() + getLists();
+	}
+
+	/**
+	 * @return number of triples with an IRI or blank node as object
+	 */
+	@Override
+	public long getResourceTriples() {
+		return resourceTriples.sum();
+	}
+
+	/**
+	 * @return number of triples with a literal as object
+	 */
+	@Override
+	public long getLiteralTriples() {
+		return literalTriples.sum();
+	}
+
+	/**
+	 * @return number of rdf:Lists created for mixed content
+	 */
+	@Override
+	public long getLists() {
+		return lists.sum();
+	}
+
+	/**
+	 * @return number of bytes read from the input stream
+	 */
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	/**
+	 * @return total time the parser has waited for free space in the buffer to the Jena or RDF4J thread
+	 */
+	@Override
+	public long getProducerStallNanos() {
+		return producerStallNanos.sum();
+	}
+
+	/**
+	 * @return total time the Jena or RDF4J thread has waited for the parser
+	 */
+	@Override
+	public long getConsumerIdleNanos() {
+		return consumerIdleNanos.sum();
+	}
+
+	/**
+	 * @return number of statements currently in the buffer to the Jena or RDF4J thread
+	 */
+	@Override
+	public int getQueueSize() {
+		BlockingQueue<?> queue = this.queue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * @return number of elements currently held back until their parent is done, e.g. for compositeId or
+	 * detected literal properties
+	 */
+	@Override
+	public long getDelayedElements() {
+		return delayedElements.sum();
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read by the parser.
+ */
+final class CountingInputStream extends FilterInputStream {
+
+	private final ConversionMetrics metrics;
+
+	private CountingInputStream(InputStream in, ConversionMetrics metrics) {
+		super(in);
+		this.metrics = metrics;
+	}
+
+	static InputStream wrap(InputStream in, ConversionMetrics metrics) {
+		if (metrics == null) {
+			return in;
+		}
+		return new CountingInputStream(in, metrics);
+	}
+
+	static InputStream unwrap(InputStream in) {
+		if (in instanceof CountingInputStream) {
+			return ((CountingInputStream) in).in;
+		}
+		return in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = super.read();
+		if (read >= 0) {
+			metrics.bytesRead(1);
+		}
+		return read;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read > 0) {
+			metrics.bytesRead(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		metrics.bytesRead(skipped);
+		return skipped;
+	}
+
+}
@@ -20,20 +20,65 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 
+/**
+ * Bounded single-producer/single-consumer ring buffer. Exactly one thread may call put() and exactly one other
+ * thread may call take(), poll() and drainTo(). The wait strategy decides what a thread does while the ring is full
+ * or empty.
+ */
 public class CustomBlockingQueue<E> implements BlockingQueue<E> {
 
-	Object[] array;
-	int start = 0;
-	int end = -1;
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 200;
+	private static final long MAX_PARK_NANOS = 1_000_000;
+
+	private final Object[] array;
+	private final int mask;
 	final int maxSize;
+	private final WaitStrategy waitStrategy;
+	private final ConversionMetrics metrics;
+
+	// next slot the producer writes to, only written by the producer
+	private final PaddedSequence tail = new PaddedSequence();
+
+	// next slot the consumer reads from, only written by the consumer
+	private final PaddedSequence head = new PaddedSequence();
+
+	// producer local copy of head and consumer local copy of tail, to avoid reading the other thread's cache line
+	private long headCache = 0;
+	// padding between the producer and the consumer caches
+	private long p1, p2, p3, p4, p5, p6, p7;
+	private long tailCache = 0;
+
+	private volatile Thread parkedProducer;
+	private volatile Thread parkedConsumer;
 
 
 	public CustomBlockingQueue(int buffer) {
-		array = new Object[buffer];
-		maxSize = buffer;
+		this(buffer, WaitStrategy.park);
+	}
+
+	public CustomBlockingQueue(int buffer, WaitStrategy waitStrategy) {
+		this(buffer, waitStrategy, null);
+	}
+
+	CustomBlockingQueue(int buffer, WaitStrategy waitStrategy, ConversionMetrics metrics) {
+		if (buffer < 1) {
+			throw new IllegalArgumentException("buffer must be at least 1");
+		}
+
+		int capacity = Integer.highestOneBit(buffer);
+		if (capacity < buffer) {
+			capacity <<= 1;
+		}
 
+		array = new Object[capacity];
+		mask = capacity - 1;
+		maxSize = capacity;
+		this.waitStrategy = waitStrategy;
+		this.metrics = metrics;
 	}
 
 	@Override
@@ -53,7 +98,15 @@ public class CustomBlockingQueue<E> implements BlockingQueue<E> {
 
 	@Override
 	public E poll() {
-		throw new UnsupportedOperationException();
+		long current = head.get();
+		if (current == tailCache) {
+			tailCache = tail.get();
+			if (current == tailCache) {
+				return null;
+			}
+		}
+
+		return consume(current);
 	}
 
 	@Override
@@ -68,19 +121,126 @@ public class CustomBlockingQueue<E> implements BlockingQueue<E> {
 
 	@Override
 	public void put(E e) throws InterruptedException {
-		while (!hasSpace()) {
-			Thread.yield();
+		if (e == null) {
+			throw new NullPointerException();
+		}
+
+		long current = tail.get();
+		long wrapPoint = current - maxSize;
+
+		int tries = 0;
+		long stalledSince = 0;
+		while (wrapPoint >= headCache) {
+			headCache = head.get();
+			if (wrapPoint < headCache) {
+				break;
+			}
+
+			if (metrics != null && stalledSince == 0) {
+				stalledSince = System.nanoTime();
+			}
+
+			if (tries >= YIELD_TRIES && waitStrategy == WaitStrategy.park) {
+				parkedProducer = Thread.currentThread();
+				if (wrapPoint >= head.get()) {
+					LockSupport.parkNanos(this, MAX_PARK_NANOS);
+				}
+				parkedProducer = null;
+			} else {
+				idle(tries++);
+			}
+
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+
+		if (stalledSince != 0) {
+			metrics.producerStalled(System.nanoTime() - stalledSince);
 		}
 
-		end = (end + 1) % maxSize;
-		array[end] = e;
+		array[(int) current & mask] = e;
+		publish(tail, current + 1);
 
+		if (waitStrategy == WaitStrategy.park) {
+			Thread consumer = parkedConsumer;
+			if (consumer != null) {
+				LockSupport.unpark(consumer);
+			}
+		}
 
 	}
 
-	private boolean hasSpace() {
-		int next = (end + 1) % maxSize;
-		return array[next] == null;
+	private void idle(int tries) {
+		if (waitStrategy == WaitStrategy.spin || tries < SPIN_TRIES) {
+			return;
+		}
+
+		Thread.yield();
+	}
+
+	private E consume(long current) {
+		int index = (int) current & mask;
+		E ret = (E) array[index];
+		array[index] = null;
+
+		publish(head, current + 1);
+		unparkProducer();
+
+		return ret;
+	}
+
+	// A parked thread publishes itself and then re-reads the sequence, so the sequence must be written with a
+	// volatile store before parkedProducer or parkedConsumer is read. An ordered store could be reordered after that
+	// read and the wakeup would be lost until the park times out. Nothing parks with the other strategies.
+	private void publish(PaddedSequence sequence, long value) {
+		if (waitStrategy == WaitStrategy.park) {
+			sequence.set(value);
+		} else {
+			sequence.lazySet(value);
+		}
+	}
+
+	private void unparkProducer() {
+		if (waitStrategy == WaitStrategy.park) {
+			Thread producer = parkedProducer;
+			if (producer != null) {
+				LockSupport.unpark(producer);
+			}
+		}
+	}
+
+	private void awaitElement(long current) throws InterruptedException {
+		int tries = 0;
+		long idleSince = 0;
+		while (current == tailCache) {
+			tailCache = tail.get();
+			if (current != tailCache) {
+				break;
+			}
+
+			if (metrics != null && idleSince == 0) {
+				idleSince = System.nanoTime();
+			}
+
+			if (tries >= YIELD_TRIES && waitStrategy == WaitStrategy.park) {
+				parkedConsumer = Thread.currentThread();
+				if (current == tail.get()) {
+					LockSupport.parkNanos(this, MAX_PARK_NANOS);
+				}
+				parkedConsumer = null;
+			} else {
+				idle(tries++);
+			}
+
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+
+		if (idleSince != 0) {
+			metrics.consumerIdle(System.nanoTime() - idleSince);
+		}
 	}
 
 	@Override
@@ -90,15 +250,10 @@ public class CustomBlockingQueue<E> implements BlockingQueue<E> {
 
 	@Override
 	public E take() throws InterruptedException {
-		while (array[start] == null) {
-			Thread.yield();
-		}
+		long current = head.get();
+		awaitElement(current);
 
-		E ret = (E) array[start];
-		array[start] = null;
-
-		start = (start + 1) % maxSize;
-		return ret;
+		return consume(current);
 
 	}
 
@@ -145,12 +300,12 @@ public class CustomBlockingQueue<E> implements BlockingQueue<E> {
 
 	@Override
 	public int size() {
-		throw new UnsupportedOperationException();
+		return (int) (tail.get() - head.get());
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return ((end + 1) % maxSize) == start && array[start] == null;
+		return head.get() == tail.get();
 	}
 
 	@Override
@@ -175,11 +330,31 @@ public class CustomBlockingQueue<E> implements BlockingQueue<E> {
 
 	@Override
 	public int drainTo(Collection<? super E> c) {
-		throw new UnsupportedOperationException();
+		return drainTo(c, Integer.MAX_VALUE);
 	}
 
+	/**
+	 * Moves all available elements, up to maxElements, into the collection and publishes the new head once
+	 * for the whole batch. Does not wait for elements.
+	 */
 	@Override
 	public int drainTo(Collection<? super E> c, int maxElements) {
-		throw new UnsupportedOperationException();
+		long current = head.get();
+		tailCache = tail.get();
+		long available = tailCache - current;
+		int count = (int) Math.min(available, maxElements);
+
+		for (int i = 0; i < count; i++) {
+			int index = (int) (current + i) & mask;
+			c.add((E) array[index]);
+			array[index] = null;
+		}
+
+		if (count > 0) {
+			publish(head, current + count);
+			unparkProducer();
+		}
+
+		return count;
 	}
 }
@@ -0,0 +1,302 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps delayed elements in a memory mapped scratch file instead of on the heap. Delayed elements are always replayed
+ * in the reverse order they were delayed in, and the elements delayed by a child are replayed before those of its
+ * parent, so the file is used as a stack: every record ends with its length and is read back from the top.
+ * Not thread safe, every handler has its own spill.
+ */
+final class DelayedElementSpill {
+
+	private static final int CHUNK_SIZE = 1 << 24;
+
+	private final Path directory;
+
+	private FileChannel channel;
+	private final List<MappedByteBuffer> chunks = new ArrayList<>();
+	private long top = 0;
+
+	private ByteBuffer record = ByteBuffer.allocate(4096);
+
+	DelayedElementSpill(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Whether the element can be written to the spill. Elements that can still be reached from the rest of the tree in
+	 * other ways than through their uri stay on the heap.
+	 */
+	static boolean canSpill(Element<?, ?> element, Element<?, ?> parent) {
+		return (element.uri != null || element.blankNodeId >= 0)
+			&& (element.delayedCreateTripleCallback == null || element.delayedCreateTripleCallback.isEmpty())
+			&& parent.rules.transformAtEndOfElement == null
+			&& parent.hasChildMap.get(element.getType()) != element;
+	}
+
+	void push(Element<?, ?> element) {
+		record.clear();
+
+		putString(element.getType());
+		putString(element.uri);
+		putLong(element.blankNodeId);
+		putLong(element.index);
+		putLong(element.elementIndex);
+		putString(element.getHasValue());
+		putInt(element.mixedContentStart);
+
+		putInt(element.childrenWithAutoDetectedAsLiteralProperty);
+		putInt((element.shallow ? 1 : 0)
+			| (element.autoDetectedAsLiteralProperty ? 2 : 0)
+			| (element.useElementAsPredicate ? 4 : 0)
+			| (element.containsMixedContent ? 8 : 0));
+
+		putInt(element.properties.size());
+		for (Property property : element.properties) {
+			if (property == null) {
+				putInt(0);
+				continue;
+			}
+			putInt(1);
+			putString(property.value);
+			putString(property.uriAttr);
+			putString(property.qname);
+		}
+
+		putInt(element.childCount);
+		putInt(element.hasChild.size());
+		for (Element<?, ?> child : element.hasChild) {
+			putString(child.uri());
+		}
+
+		putInt(element.mixedContent.size());
+		for (Object content : element.mixedContent) {
+			if (content instanceof Element) {
+				putInt(1);
+				putString(((Element<?, ?>) content).uri());
+			} else {
+				putInt(0);
+				putString((String) content);
+			}
+		}
+
+		int length = record.position();
+		putInt(length);
+
+		record.flip();
+		write(record);
+	}
+
+	<ResourceType, Datatype> Element<ResourceType, Datatype> pop(Element<ResourceType, Datatype> parent) {
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		read(top - 4, lengthBuffer);
+		int length = lengthBuffer.getInt(0);
+
+		long start = top - 4 - length;
+		if (record.capacity() < length) {
+			record = ByteBuffer.allocate(Math.max(length, record.capacity() * 2));
+		}
+		record.clear();
+		record.limit(length);
+		read(start, record);
+		record.flip();
+		top = start;
+
+		AdvancedSaxHandler<ResourceType, Datatype> handler = parent.getHandler();
+		Element<ResourceType, Datatype> element = new Element<>(handler, parent.getBuilder());
+		element.parent = parent;
+
+		element.type = getString();
+		element.rules = parent.getBuilder().getElementRules(element.type);
+		element.uri = getString();
+		element.blankNodeId = record.getLong();
+		element.index = record.getLong();
+		element.elementIndex = record.getLong();
+		String hasValue = getString();
+		if (hasValue != null) {
+			element.setHasValue(hasValue);
+		}
+		element.mixedContentStart = record.getInt();
+
+		element.childrenWithAutoDetectedAsLiteralProperty = record.getInt();
+		int flags = record.getInt();
+		element.shallow = (flags & 1) != 0;
+		element.autoDetectedAsLiteralProperty = (flags & 2) != 0;
+		element.useElementAsPredicate = (flags & 4) != 0;
+		element.containsMixedContent = (flags & 8) != 0;
+		element.delayedOutput = true;
+
+		int properties = record.getInt();
+		for (int i = 0; i < properties; i++) {
+			if (record.getInt() == 0) {
+				element.properties.add(null);
+				continue;
+			}
+			String value = getString();
+			element.properties.add(new Property(getString(), getString(), value));
+		}
+
+		// the children have already been converted, only their uris are used from here on
+		element.childCount = record.getInt();
+		int children = record.getInt();
+		for (int i = 0; i < children; i++) {
+			element.hasChild.add(stub(handler, parent.getBuilder(), getString()));
+		}
+
+		int mixedContent = record.getInt();
+		for (int i = 0; i < mixedContent; i++) {
+			if (record.getInt() == 1) {
+				element.mixedContent.add(stub(handler, parent.getBuilder(), getString()));
+			} else {
+				element.mixedContent.add(getString());
+			}
+		}
+
+		return element;
+	}
+
+	private static <ResourceType, Datatype> Element<ResourceType, Datatype> stub(AdvancedSaxHandler<ResourceType, Datatype> handler, Builder.Advanced<ResourceType, Datatype, ? extends Builder.Advanced> builder, String uri) {
+		Element<ResourceType, Datatype> stub = new Element<>(handler, builder);
+		stub.uri = uri;
+		return stub;
+	}
+
+	/**
+	 * Deletes the scratch file. The mapped chunks are released by the garbage collector.
+	 */
+	void close() {
+		chunks.clear();
+		top = 0;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+	private void write(ByteBuffer source) {
+		while (source.hasRemaining()) {
+			MappedByteBuffer chunk = chunk(top);
+			chunk.position((int) (top % CHUNK_SIZE));
+			int length = Math.min(source.remaining(), chunk.remaining());
+
+			ByteBuffer slice = source.duplicate();
+			slice.limit(slice.position() + length);
+			chunk.put(slice);
+
+			source.position(source.position() + length);
+			top += length;
+		}
+	}
+
+	private void read(long position, ByteBuffer target) {
+		while (target.hasRemaining()) {
+			MappedByteBuffer chunk = chunks.get((int) (position / CHUNK_SIZE));
+			ByteBuffer slice = chunk.duplicate();
+			slice.position((int) (position % CHUNK_SIZE));
+			slice.limit(Math.min(CHUNK_SIZE, slice.position() + target.remaining()));
+
+			position += slice.remaining();
+			target.put(slice);
+		}
+	}
+
+	private MappedByteBuffer chunk(long position) {
+		int index = (int) (position / CHUNK_SIZE);
+		if (index < chunks.size()) {
+			return chunks.get(index);
+		}
+
+		try {
+			if (channel == null) {
+				Path file = directory != null
+					? Files.createTempFile(directory, "xmltordf-delayed", ".tmp")
+					: Files.createTempFile("xmltordf-delayed", ".tmp");
+				channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+			}
+
+			MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, (long) index * CHUNK_SIZE, CHUNK_SIZE);
+			chunks.add(chunk);
+			return chunk;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (record.remaining() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+			record.flip();
+			larger.put(record);
+			record = larger;
+		}
+	}
+
+	private void putInt(int value) {
+		ensureCapacity(4);
+		record.putInt(value);
+	}
+
+	private void putLong(long value) {
+		ensureCapacity(8);
+		record.putLong(value);
+	}
+
+	private void putString(String value) {
+		if (value == null) {
+			putInt(-1);
+			return;
+		}
+
+		int length = value.length();
+		putInt(length);
+		ensureCapacity(length * 2);
+		for (int i = 0; i < length; i++) {
+			record.putChar(value.charAt(i));
+		}
+	}
+
+	private String getString() {
+		int length = record.getInt();
+		if (length < 0) {
+			return null;
+		}
+
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = record.getChar();
+		}
+		return new String(chars);
+	}
+
+}
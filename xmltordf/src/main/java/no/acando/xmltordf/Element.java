@@ -18,6 +18,7 @@ package no.acando.xmltordf;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,33 +28,50 @@ import java.util.Optional;
 
 public class Element<ResourceType, Datatype> {
 
-	private final AdvancedSaxHandler<ResourceType, Datatype> handler;
+	private AdvancedSaxHandler<ResourceType, Datatype> handler;
 	private final Builder.Advanced<ResourceType, Datatype, ? extends Builder.Advanced> builder;
 
-	private String type;
+	String type;
+	// the builder configuration for the current type
+	ElementRules<ResourceType, Datatype> rules;
 	public String uri;
+	// blank node label until it is turned into the uri, -1 when the element has no blank node
+	long blankNodeId = -1;
 	public Element<ResourceType, Datatype> parent;
+	// the text of the element, borrowed from the handler while the element is open, see appendValue()
 	StringBuilder hasValue;
-	public ArrayList<Element<ResourceType, Datatype>> hasChild = new ArrayList<>(10);
-	public Map<String, Element<ResourceType, Datatype>> hasChildMap = new HashMap<>();
+	private boolean textBufferBorrowed;
+	// whether the text contains anything but whitespace, kept up to date while appending
+	boolean hasText;
+	// the text as a String, created when it is first needed
+	String hasValueString;
+
+	// the lists only allocate their backing arrays on the first add, the rest is created when first needed
+	// the children are only kept when something may still need them, see keepsChildren()
+	public ArrayList<Element<ResourceType, Datatype>> hasChild = new ArrayList<>();
+	int childCount;
+	// only children used by a composite id of a sibling are put in the map
+	public Map<String, Element<ResourceType, Datatype>> hasChildMap = Collections.emptyMap();
 
-	public ArrayList<Property> properties = new ArrayList<>(3);
+	public ArrayList<Property> properties = new ArrayList<>();
 	long index = 0;
 	long elementIndex = 0;
 	public boolean shallow;
-	private boolean autoDetectedAsLiteralProperty;
-	CountingMap indexMap = new CountingMap();
+	boolean autoDetectedAsLiteralProperty;
+	private CountingMap indexMap;
 
 
 	public ArrayList<Object> mixedContent = new ArrayList<>();
-	public StringBuilder tempMixedContentString = new StringBuilder("");
+	// start of the text in hasValue that comes after the last child in mixed content
+	int mixedContentStart;
 	public boolean useElementAsPredicate;
 	boolean containsMixedContent;
-	private boolean delayedOutput;
-	//private Runnable delayedCreateTripleCallback;
-	private ArrayDeque<Element> delayedCreateTripleCallback = new ArrayDeque<>();
+	boolean delayedOutput;
+	ArrayDeque<Element> delayedCreateTripleCallback;
+	// stands in for a delayed element that has been written to the spill of the handler
+	private static final Element SPILLED = new Element<>(null, null);
 
-	private int childrenWithAutoDetectedAsLiteralProperty;
+	int childrenWithAutoDetectedAsLiteralProperty;
 	public CompositeId compositeId;
 
 
@@ -68,13 +86,60 @@ public class Element<ResourceType, Datatype> {
 	}
 
 	public void setType(String type) {
+		setType(type, builder.getElementRules(type));
+	}
+
+	void setType(String type, ElementRules<ResourceType, Datatype> rules) {
 		if (builder.useHashmapForChildren && parent != null) {
 			parent.hasChildMap.remove(this.type);
-			parent.hasChildMap.put(type, this);
+			parent.putChild(type, this);
 		}
 
 
 		this.type = type;
+		this.rules = rules;
+	}
+
+	/**
+	 * The uri of this element, blank node labels are only created when they are first needed.
+	 */
+	String uri() {
+		if (uri == null && blankNodeId >= 0) {
+			uri = handler.blankNodePrefix + blankNodeId;
+		}
+		return uri;
+	}
+
+	/**
+	 * Transforms may read the public uri field of this element, its ancestors and its children directly, so their
+	 * blank node labels are created before a transform runs.
+	 */
+	void resolveUrisForTransform() {
+		for (Element<ResourceType, Datatype> element = this; element != null; element = element.parent) {
+			element.uri();
+		}
+		if (hasChild != null) {
+			for (int i = 0; i < hasChild.size(); i++) {
+				hasChild.get(i).uri();
+			}
+		}
+	}
+
+	void putChild(String type, Element<ResourceType, Datatype> child) {
+		if (!builder.childrenForCompositeId.contains(type)) {
+			return;
+		}
+		if (hasChildMap == Collections.<String, Element<ResourceType, Datatype>>emptyMap()) {
+			hasChildMap = new HashMap<>();
+		}
+		hasChildMap.put(type, child);
+	}
+
+	long nextElementIndex(String type) {
+		if (indexMap == null) {
+			indexMap = new CountingMap();
+		}
+		return indexMap.plusPlus(type);
 	}
 
 	public boolean getContainsMixedContent() {
@@ -83,52 +148,102 @@ public class Element<ResourceType, Datatype> {
 
 	public void appendValue(char[] ch, int start, int length) {
 
-		if (!hasChild.isEmpty()) {
-			if (!containsMixedContent && !new String(ch, start, length).trim().isEmpty()) {
-				containsMixedContent = true;
-				hasChild.forEach(e -> mixedContent.add(e));
-			}
+		boolean mixedContentPossible = builder.detectMixedContent && !containsMixedContent && childCount > 0;
+
+		// whitespace only has to be looked for until the first text is found
+		boolean text = (!hasText || mixedContentPossible) && containsText(ch, start, length);
+
+		if (mixedContentPossible && text) {
+			containsMixedContent = true;
+			hasChild.forEach(e -> mixedContent.add(e));
 		}
 
 		if (hasValue == null) {
-			hasValue = new StringBuilder(new String(ch, start, length));
-		} else {
-			hasValue.append(ch, start, length);
+			if (hasValueString != null) {
+				// text set with setHasValue(String)
+				hasValue = new StringBuilder(hasValueString);
+			} else {
+				hasValue = handler.borrowTextBuffer(this);
+				textBufferBorrowed = true;
+			}
 		}
-		tempMixedContentString.append(ch, start, length);
+
+		hasValue.append(ch, start, length);
+		hasText |= text;
 		hasValueString = null;
 	}
 
-
-	String hasValueString;
-	boolean hasValueStringEmpty = false;
-
 	public void setHasValue(String s) {
-		setHasValue(new StringBuilder(s));
+		hasValue = null;
+		textBufferBorrowed = false;
+		hasValueString = s;
+		hasText = s != null && containsText(s);
 	}
 
 	public void setHasValue(StringBuilder s) {
 		hasValue = s;
+		textBufferBorrowed = false;
 		hasValueString = null;
+		hasText = s != null && containsText(s);
 	}
 
+	/**
+	 * The text of the element, or null if it is empty or only whitespace.
+	 */
 	public String getHasValue() {
 
-		if (hasValue == null) {
+		if (!hasText) {
 			return null;
 		}
 		if (hasValueString == null) {
-			hasValueString = hasValue.toString();//.trim();
-			if (hasValueString.trim().isEmpty()) {
-				hasValueString = "";
-				hasValueStringEmpty = hasValueString.isEmpty();
+			hasValueString = hasValue.toString();
+		}
+
+		return hasValueString;
+	}
+
+	/**
+	 * Hands the text buffer back to the handler, so that it can be reused by the next element at the same depth.
+	 * The text is kept as a String if there is any.
+	 */
+	void releaseTextBuffer() {
+		if (!textBufferBorrowed) {
+			return;
+		}
+
+		getHasValue();
+		hasValue = null;
+		textBufferBorrowed = false;
+	}
+
+	boolean holdsTextBuffer(StringBuilder buffer) {
+		return textBufferBorrowed && hasValue == buffer;
+	}
+
+	private void clearText() {
+		hasValue = null;
+		textBufferBorrowed = false;
+		hasText = false;
+		hasValueString = null;
+	}
+
+	// same notion of whitespace as String.trim()
+	private static boolean containsText(char[] ch, int start, int length) {
+		for (int i = start, end = start + length; i < end; i++) {
+			if (ch[i] > ' ') {
+				return true;
 			}
 		}
+		return false;
+	}
 
-		if (hasValueStringEmpty) {
-			return null;
+	private static boolean containsText(CharSequence s) {
+		for (int i = 0, length = s.length(); i < length; i++) {
+			if (s.charAt(i) > ' ') {
+				return true;
+			}
 		}
-		return hasValueString;
+		return false;
 	}
 
 	public long getIndex() {
@@ -152,20 +267,29 @@ public class Element<ResourceType, Datatype> {
 		}
 
 		containsMixedContent = true;
-		String temp = tempMixedContentString.toString();
-		if (!temp.isEmpty()) {
-			mixedContent.add(temp);
-		}
-		tempMixedContentString = new StringBuilder("");
+		addMixedContentText();
 		mixedContent.add(element);
 	}
 
 	private void endMixedContent() {
 		if (containsMixedContent) {
-			if (!tempMixedContentString.toString().isEmpty()) {
-				mixedContent.add(tempMixedContentString.toString());
-			}
+			addMixedContentText();
+		}
+	}
+
+	// adds the text since the previous child, which is the end of hasValue
+	private void addMixedContentText() {
+		CharSequence text = hasValue != null ? hasValue : hasValueString;
+		if (text == null) {
+			return;
 		}
+
+		int length = text.length();
+		int start = Math.min(mixedContentStart, length);
+		if (start < length) {
+			mixedContent.add(text.subSequence(start, length).toString());
+		}
+		mixedContentStart = length;
 	}
 
 
@@ -175,11 +299,11 @@ public class Element<ResourceType, Datatype> {
 			compositeId.resolveFromParent(parent);
 		}
 
-		if (parent != null && parent.parent != null && parent.parent.uri != null && parent.compositeId != null && parent.compositeId.parentId) {
-			parent.compositeId.resolveElement(XmlToRdfVocabulary.parentId, parent.parent.uri);
+		if (parent != null && parent.parent != null && parent.parent.uri() != null && parent.compositeId != null && parent.compositeId.parentId) {
+			parent.compositeId.resolveElement(XmlToRdfVocabulary.parentId, parent.parent.uri());
 		}
 
-		if (parent != null && parent.uri == null) {
+		if (parent != null && parent.uri() == null) {
 			// resolve
 			parent.compositeId.resolveElement(type, getHasValue());
 
@@ -188,10 +312,11 @@ public class Element<ResourceType, Datatype> {
 
 			if (parent.compositeId.completed()) {
 				parent.uri = parent.compositeId.resolveIdentifier();
+				handler.compositeIdResolved(parent);
 			}
 
-			if (parent != null && parent.parent != null && parent.parent.uri != null && parent.compositeId != null && parent.compositeId.parentId) {
-				parent.compositeId.resolveElement(XmlToRdfVocabulary.parentId, parent.parent.uri);
+			if (parent != null && parent.parent != null && parent.parent.uri() != null && parent.compositeId != null && parent.compositeId.parentId) {
+				parent.compositeId.resolveElement(XmlToRdfVocabulary.parentId, parent.parent.uri());
 			}
 
 			return;
@@ -199,71 +324,49 @@ public class Element<ResourceType, Datatype> {
 
 		endMixedContent();
 
-		if (!delayedCreateTripleCallback.isEmpty()) {
-
-			List<Element> cleanUpList = new ArrayList<>();
-			int counter = delayedCreateTripleCallback.size();
-			Element prev = null;
-			while (!delayedCreateTripleCallback.isEmpty()) {
-				Element element = delayedCreateTripleCallback.pop();
-
-				if (prev != null && element == prev) {
-					throw new RuntimeException("Could not resolve identifier for an element on the following path in time: " + element.getPath());
-				}
-
-				element.createTriples();
-				cleanUpList.add(element);
-				if (counter-- < -10) {
-					// start infinite loop detection for elements that repeatedly can't resolve their parents IRI
-					prev = element;
-				}
-			}
-			cleanUpList.forEach(Element::cleanUp);
+		createDelayedTriples();
 
+		if (rules.transformAtEndOfElement != null) {
+			resolveUrisForTransform();
+			rules.transformAtEndOfElement.transform(this);
 		}
 
-		builder.doComplexTransformElementAtEndOfElement(this);
-
-		if (getHasValue() != null) {
-			hasValue = new StringBuilder(builder.doTransformForElementValue(type, getHasValue()));
-			hasValueString = null;
+		if (rules.transformForElementValue != null && getHasValue() != null) {
+			setHasValue(rules.transformForElementValue.transform(getHasValue()));
 		}
 
 
-		if (builder.useElementAsPredicateMap != null && builder.useElementAsPredicateMap.containsKey(type)) {
+		if (rules.useElementAsPredicate) {
 
-			hasChild.forEach(child -> handler.createTriple(parent.uri, type, child.uri));
+			hasChild.forEach(child -> handler.createTriple(parent.uri(), type, child.uri()));
 
 			return;
 		}
 
 		if (parent != null && !parent.useElementAsPredicate) {
-			if (builder.convertComplexElementsWithOnlyAttributesToPredicates && hasChild.isEmpty()) {
+			if (builder.convertComplexElementsWithOnlyAttributesToPredicates && childCount == 0) {
 				shallow = true;
 			} else if (builder.convertComplexElementsWithOnlyAttributesAndSimpleTypeChildrenToPredicate) {
-				if (childrenWithAutoDetectedAsLiteralProperty == hasChild.size()) {
+				if (childrenWithAutoDetectedAsLiteralProperty == childCount) {
 					shallow = true;
 				}
 			}
 
-			if (shallow) {
-				if (builder.getInsertPredicateBetweenOrDefaultPredicate(parent.type, type, XmlToRdfVocabulary.hasChild) != XmlToRdfVocabulary.hasChild) {
-					shallow = false;
-				}
-
+			if (shallow && edgeFromParent().insertedPredicate) {
+				shallow = false;
 			}
 		}
 
-		boolean shouldConvertToLiteralProperty = builder.autoDetectLiteralProperties && hasChild.isEmpty() && properties.isEmpty() && parent != null && parent.mixedContent.isEmpty() && !parent.useElementAsPredicate && !containsMixedContent;
+		boolean shouldConvertToLiteralProperty = builder.autoDetectLiteralProperties && childCount == 0 && properties.isEmpty() && parent != null && parent.mixedContent.isEmpty() && !parent.useElementAsPredicate && !containsMixedContent;
 		if (shouldConvertToLiteralProperty) {
 
-			if (!parent.containsMixedContent && !delayedOutput && parent.getHasValue() == null) {
+			if (!parent.containsMixedContent && !delayedOutput && !parent.hasText) {
 				if (getHasValue() != null) {
 					parent.addDelayedTripleCreation(this);
 				}
 			} else {
 				if (getHasValue() != null) {
-					createTriplesForHasValue(parent.uri, type, type);
+					createTriplesForHasValue(parent.uri(), type, type);
 				}
 			}
 
@@ -271,37 +374,35 @@ public class Element<ResourceType, Datatype> {
 		} else if (shallow) {
 
 			//@TODO handle parent == null
-			handler.createTriple(parent.uri, type, uri);
+			handler.createTriple(parent.uri(), type, uri());
 			if (getHasValue() != null) {
-				createTriplesForHasValue(uri, XmlToRdfVocabulary.hasValue, uri);
+				createTriplesForHasValue(uri(), XmlToRdfVocabulary.hasValue, uri());
 			}
 
 			addIndexTriples();
 
 			if (!mixedContent.isEmpty()) {
-				handler.createList(uri, XmlToRdfVocabulary.hasMixedContent, mixedContent);
+				handler.createList(uri(), XmlToRdfVocabulary.hasMixedContent, mixedContent);
 			}
 
 
 		} else {
-			handler.createTriple(uri, "http://www.w3.org/1999/02/22-rdf-syntax-ns#type", type);
+			handler.createTriple(uri(), "http://www.w3.org/1999/02/22-rdf-syntax-ns#type", type);
 			if (parent != null && !parent.useElementAsPredicate) {
-
-				String prop = builder.getInsertPredicateBetweenOrDefaultPredicate(parent.type, type, XmlToRdfVocabulary.hasChild);
-
-				if (builder.checkInvertPredicate(prop, parent.type, type)) {
-					handler.createTriple(uri, prop, parent.uri);
+				SymbolTable.Edge edge = edgeFromParent();
+				if (edge.inverted) {
+					handler.createTriple(uri(), edge.predicate, parent.uri());
 				} else {
-					handler.createTriple(parent.uri, prop, uri);
+					handler.createTriple(parent.uri(), edge.predicate, uri());
 				}
 			}
 
 			if (getHasValue() != null) {
-				createTriplesForHasValue(uri, XmlToRdfVocabulary.hasValue, type);
+				createTriplesForHasValue(uri(), XmlToRdfVocabulary.hasValue, type);
 			}
 
 			if (!mixedContent.isEmpty()) {
-				handler.createList(uri, XmlToRdfVocabulary.hasMixedContent, mixedContent);
+				handler.createList(uri(), XmlToRdfVocabulary.hasMixedContent, mixedContent);
 			}
 
 			addIndexTriples();
@@ -310,12 +411,13 @@ public class Element<ResourceType, Datatype> {
 
 		properties.stream().filter(Objects::nonNull).forEach((property) -> {
 
-			ResourceType uriForTextInAttribute = builder.getUriForTextInAttribute(type, property.uriAttr + property.qname, property.value);
+			String predicate = property.getPredicate();
+			ResourceType uriForTextInAttribute = builder.getUriForTextInAttribute(type, predicate, property.value);
 			if (uriForTextInAttribute != null) {
-				handler.createTriple(uri, property.uriAttr + property.qname, uriForTextInAttribute);
+				handler.createTriple(uri(), predicate, uriForTextInAttribute);
 
 			} else {
-				handler.createTripleLiteral(uri, property.uriAttr + property.qname, property.value);
+				handler.createTripleLiteral(uri(), predicate, property.value);
 
 			}
 
@@ -328,17 +430,78 @@ public class Element<ResourceType, Datatype> {
 
 	}
 
+	void createDelayedTriples() {
+		if (delayedCreateTripleCallback == null || delayedCreateTripleCallback.isEmpty()) {
+			return;
+		}
+
+		List<Element> cleanUpList = new ArrayList<>();
+		int counter = delayedCreateTripleCallback.size();
+		Element prev = null;
+		while (!delayedCreateTripleCallback.isEmpty()) {
+			Element element = delayedCreateTripleCallback.pop();
+			if (element == SPILLED) {
+				element = handler.delayedElementSpill().pop(this);
+			}
+			if (handler.metrics != null) {
+				handler.metrics.delayedElementsCreated(1);
+			}
+
+			if (prev != null && element == prev) {
+				throw new RuntimeException("Could not resolve identifier for an element on the following path in time: " + element.getPath());
+			}
+
+			element.createTriples();
+			cleanUpList.add(element);
+			if (counter-- < -10) {
+				// start infinite loop detection for elements that repeatedly can't resolve their parents IRI
+				prev = element;
+			}
+		}
+		cleanUpList.forEach(Element::cleanUp);
+	}
+
+	/**
+	 * Move this element to another handler, used when the rest of the element is converted on a different thread.
+	 */
+	void reparent(AdvancedSaxHandler<ResourceType, Datatype> handler, Element<ResourceType, Datatype> parent) {
+		// the blank node label uses the prefix of the handler that created the element
+		uri();
+		this.handler = handler;
+		this.parent = parent;
+	}
+
+	void addChild(Element<ResourceType, Datatype> child) {
+		childCount++;
+		if (keepsChildren()) {
+			hasChild.add(child);
+		}
+	}
+
+	// whether the children are needed when this element ends, otherwise counting them is enough
+	private boolean keepsChildren() {
+		return builder.detectMixedContent
+			|| containsMixedContent
+			|| rules.useElementAsPredicate
+			|| rules.transformAtEndOfElement != null;
+	}
+
+	void addChildrenWithAutoDetectedAsLiteralProperty(Element<ResourceType, Datatype> from) {
+		childrenWithAutoDetectedAsLiteralProperty += from.childrenWithAutoDetectedAsLiteralProperty;
+	}
+
 	private void createTriplesForHasValue(final String subject, final String predicates, final String dataTypeLookup) {
 		Optional<ResourceType> resourceType = handler.mapLiteralToResource(this);
 		autoDetectedAsLiteralProperty = true;
 		if (parent != null) {
 			parent.childrenWithAutoDetectedAsLiteralProperty++;
 		}
-		if (builder.dataTypeOnElement != null && builder.dataTypeOnElement.containsKey(dataTypeLookup)) {
+		Datatype datatype = dataTypeLookup == type ? rules.datatype : datatype(dataTypeLookup);
+		if (datatype != null) {
 			if (resourceType.isPresent()) {
 				throw new IllegalStateException("Can not both map literal to object and have datatype at the same time.");
 			}
-			handler.createTripleLiteral(subject, predicates, getHasValue(), builder.dataTypeOnElement.get(dataTypeLookup)); //TRANSFORM
+			handler.createTripleLiteral(subject, predicates, getHasValue(), datatype); //TRANSFORM
 		} else {
 			if (resourceType.isPresent()) {
 				handler.createTriple(subject, predicates, resourceType.get());
@@ -348,25 +511,78 @@ public class Element<ResourceType, Datatype> {
 		}
 	}
 
+	private SymbolTable.Edge edgeFromParent() {
+		return handler.symbolTable.edge(parent.type, type);
+	}
+
+	private Datatype datatype(String dataTypeLookup) {
+		return builder.dataTypeOnElement != null ? builder.dataTypeOnElement.get(dataTypeLookup) : null;
+	}
+
 	private void addIndexTriples() {
 		if (builder.addIndex) {
-			handler.createTripleLiteral(uri, XmlToRdfVocabulary.index, index);
-			handler.createTripleLiteral(uri, XmlToRdfVocabulary.elementIndex, elementIndex);
+			handler.createTripleLiteral(uri(), XmlToRdfVocabulary.index, index);
+			handler.createTripleLiteral(uri(), XmlToRdfVocabulary.elementIndex, elementIndex);
 		}
 	}
 
+	// the element has been written to the spill, the parent may only use the uri from here on
+	private void releaseSpilled() {
+		clearText();
+		hasChild = null;
+		hasChildMap = null;
+		mixedContent = null;
+		compositeId = null;
+		// the rest of createTriples still reads the properties of a delayed literal property
+		properties.clear();
+		properties.trimToSize();
+	}
+
 	private void cleanUp() {
+		// the parent keeps this element in hasChild for its mixed content, which only needs the uri. Transforms at
+		// the end of the parent and composite ids reading this element from the parent still need the rest.
+		boolean keepContent = parent != null
+			&& (parent.rules.transformAtEndOfElement != null || parent.hasChildMap.get(type) == this);
+
 		hasChild = null;
 		hasChildMap = null;
 		parent = null;
 		properties = null;
+
+		if (!keepContent) {
+			clearText();
+			mixedContent = null;
+			compositeId = null;
+			delayedCreateTripleCallback = null;
+		}
 	}
 
 	public void addDelayedTripleCreation(Element element) {
 
 		element.delayedOutput = true;
 
-		delayedCreateTripleCallback.push(element);
+		if (!handler.keepDelayedElement(this, element)) {
+			return;
+		}
+
+		if (delayedCreateTripleCallback == null) {
+			delayedCreateTripleCallback = new ArrayDeque<>();
+		}
+
+		if (builder.spillDelayedElementsThreshold > 0
+			&& delayedCreateTripleCallback.size() >= builder.spillDelayedElementsThreshold
+			&& DelayedElementSpill.canSpill(element, this)) {
+
+			handler.delayedElementSpill().push(element);
+			element.releaseSpilled();
+			delayedCreateTripleCallback.push(SPILLED);
+		} else {
+			delayedCreateTripleCallback.push(element);
+		}
+
+		if (handler.metrics != null) {
+			handler.metrics.delayedElementAdded();
+		}
 
 //        if (delayedCreateTripleCallback == null) {
 //            delayedCreateTripleCallback = () -> {
@@ -399,7 +615,7 @@ public class Element<ResourceType, Datatype> {
 		Element temp = this;
 		StringBuilder path = new StringBuilder();
 		do {
-			path.append(temp.type).append(" (").append(temp.uri).append(") --> ");
+			path.append(temp.type).append(" (").append(temp.uri()).append(") --> ");
 			temp = temp.parent;
 		} while (temp != null);
 
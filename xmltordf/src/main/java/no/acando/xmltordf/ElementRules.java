@@ -0,0 +1,89 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The builder configuration for one element type. build() compiles the maps of the builder into one ElementRules per
+ * configured type, so a converter does a single lookup per element instead of querying every map. Types without any
+ * configuration share one default instance. Rules that depend on the parent as well, like inserted predicates, are
+ * still looked up on the builder.
+ */
+final class ElementRules<ResourceType, Datatype> {
+
+	final boolean skip;
+	final boolean forcedMixedContent;
+	final boolean useElementAsPredicate;
+	final CompositeId compositeId;
+	final ComplexClassTransform transformAtStartOfElement;
+	final ComplexClassTransform transformAtEndOfElement;
+	final StringTransform transformForElementValue;
+	final Datatype datatype;
+	final Map<String, ResourceType> elementTextToUri;
+	final StringTransformToT<ResourceType> elementTextToUriFunction;
+
+	private ElementRules(Builder.Advanced<ResourceType, Datatype, ?> builder, String type) {
+		skip = builder.skipElementMap != null && builder.skipElementMap.containsKey(type);
+		forcedMixedContent = builder.forcedMixedContentMap != null && builder.forcedMixedContentMap.containsKey(type);
+		useElementAsPredicate = builder.useElementAsPredicateMap != null && builder.useElementAsPredicateMap.containsKey(type);
+		compositeId = builder.compositeIdMap != null ? builder.compositeIdMap.get(type) : null;
+		transformAtStartOfElement = builder.complexElementTransformAtStartOfElement != null ? builder.complexElementTransformAtStartOfElement.get(type) : null;
+		transformAtEndOfElement = builder.complexElementTransformAtEndOfElement != null ? builder.complexElementTransformAtEndOfElement.get(type) : null;
+		// falls back to the transform for all elements
+		transformForElementValue = builder.transformForElementValueMap != null ? builder.transformForElementValueMap.get(type) : null;
+		datatype = builder.dataTypeOnElement != null ? builder.dataTypeOnElement.get(type) : null;
+		elementTextToUri = builder.elementTextToUriMap != null ? builder.elementTextToUriMap.get(type) : null;
+		elementTextToUriFunction = builder.elementTextToUriFunctionMap != null ? builder.elementTextToUriFunctionMap.get(type) : null;
+	}
+
+	static <ResourceType, Datatype> ElementRules<ResourceType, Datatype> defaultRules(Builder.Advanced<ResourceType, Datatype, ?> builder) {
+		return new ElementRules<>(builder, null);
+	}
+
+	static <ResourceType, Datatype> Map<String, ElementRules<ResourceType, Datatype>> compile(Builder.Advanced<ResourceType, Datatype, ?> builder) {
+		Set<String> types = new HashSet<>();
+		addKeys(types, builder.skipElementMap);
+		addKeys(types, builder.forcedMixedContentMap);
+		addKeys(types, builder.useElementAsPredicateMap);
+		addKeys(types, builder.compositeIdMap);
+		addKeys(types, builder.complexElementTransformAtStartOfElement);
+		addKeys(types, builder.complexElementTransformAtEndOfElement);
+		addKeys(types, builder.transformForElementValueMap);
+		addKeys(types, builder.dataTypeOnElement);
+		addKeys(types, builder.elementTextToUriMap);
+		addKeys(types, builder.elementTextToUriFunctionMap);
+		types.remove(null);
+
+		Map<String, ElementRules<ResourceType, Datatype>> rules = new HashMap<>();
+		for (String type : types) {
+			rules.put(type, new ElementRules<>(builder, type));
+		}
+
+		return rules;
+	}
+
+	private static void addKeys(Set<String> types, Map<String, ?> map) {
+		if (map != null) {
+			types.addAll(map.keySet());
+		}
+	}
+
+}
@@ -16,25 +16,22 @@ limitations under the License.
 
 package no.acando.xmltordf;
 
-import org.apache.jena.vocabulary.RDF;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 
-import static no.acando.xmltordf.Common.BLANK_NODE_PREFIX;
-
 
 public class FastSaxHandler extends org.xml.sax.helpers.DefaultHandler {
 
-	private final UndoableBufferedPrintWriter out;
+	private final PendingTripleWindow out;
 
-	// A Deque used as a stack to keep track of the URI/Bnode ID of the parent elements
-	private final Deque<String> nodeIdStack = new ArrayDeque<>(100);
+	// A stack of the blank node ids of the parent elements, the id is the index of the element in the document
+	private long[] nodeIdStack = new long[100];
+	private int depth = 0;
 
 	// A Deque used as a stack to hold the string builders that keep all the characters in the value of the xml element
 	private final Deque<StringBuilder> stringBuilderStack = new ArrayDeque<>(100);
@@ -47,11 +44,11 @@ public class FastSaxHandler extends org.xml.sax.helpers.DefaultHandler {
 	Builder.Fast builder;
 
 	public FastSaxHandler(OutputStream out, Builder.Fast builder) {
-		try {
-			this.out = new UndoableBufferedPrintWriter(new PrintStream(out, false, "UTF-8"));
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException("unsupported encoding");
-		}
+		this(out, builder, NTriplesWriter.newBuffer());
+	}
+
+	FastSaxHandler(OutputStream out, Builder.Fast builder, byte[] buffer) {
+		this.out = new PendingTripleWindow(new NTriplesWriter(out, buffer), builder.metrics);
 		this.builder = builder;
 	}
 
@@ -64,6 +61,10 @@ public class FastSaxHandler extends org.xml.sax.helpers.DefaultHandler {
 	@Override
 	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
 
+		if (builder.metrics != null) {
+			builder.metrics.element();
+		}
+
 		String ns = builder.overrideNamespace;
 		if (ns != null) {
 			uri = ns;
@@ -85,18 +86,20 @@ public class FastSaxHandler extends org.xml.sax.helpers.DefaultHandler {
 		}
 
 
-		final String bnode = "_:index" + index++;
+		final long bnode = index++;
 
-		if (nodeIdStack.size() > 0) {
-			String parent = nodeIdStack.peek();
-			out.println(createTriple(parent, XmlToRdfVocabulary.hasChild, bnode));
+		if (depth > 0) {
+			out.hasChild(nodeIdStack[depth - 1], bnode);
 		}
 
-		out.println(createTriple(bnode, RDF.type.getURI(), fullyQualifiedName));
+		out.type(bnode, fullyQualifiedName);
 
 		typeStack.push(fullyQualifiedName);
 
-		nodeIdStack.push(bnode);
+		if (depth == nodeIdStack.length) {
+			nodeIdStack = Arrays.copyOf(nodeIdStack, depth * 2);
+		}
+		nodeIdStack[depth++] = bnode;
 
 		stringBuilderStack.push(new StringBuilder());
 
@@ -117,7 +120,7 @@ public class FastSaxHandler extends org.xml.sax.helpers.DefaultHandler {
 			valueAttr = builder.doTransformForAttribute(uri + localName, uriAttr + nameAttr, valueAttr);
 
 
-			out.println(createTripleLiteral(bnode, uriAttr + nameAttr, valueAttr));
+			out.literal(bnode, uriAttr + nameAttr, valueAttr);
 
 		}
 
@@ -126,7 +129,7 @@ public class FastSaxHandler extends org.xml.sax.helpers.DefaultHandler {
 	@Override
 	public void endElement(String uri, String localName, String qName) throws SAXException {
 
-		final String nodeId = nodeIdStack.pop();
+		final long nodeId = nodeIdStack[--depth];
 		final String typePop = typeStack.pop();
 		String value = stringBuilderStack.pop().toString();
 		if (value.trim().isEmpty()) {
@@ -140,50 +143,49 @@ public class FastSaxHandler extends org.xml.sax.helpers.DefaultHandler {
 
 		if (!value.isEmpty()) {
 			handleTextValue(nodeId, typePop, value);
-		} else if (out.peek().equals(createTriple(nodeId, RDF.type.getURI(), typePop))) {
+		} else if (out.isType(nodeId)) {
 			cleanUpEmptyTag(nodeId);
 		}
 
 	}
 
-	private void cleanUpEmptyTag(String stringPop) {
-		String outPop = out.pop();
-		if (out.peek().equals(createTriple(nodeIdStack.peek(), XmlToRdfVocabulary.hasChild, stringPop))) {
-			out.pop();
-		} else {
-			out.println(outPop);
+	// an element without attributes, children or text leaves no triples, unless they have already been written
+	private void cleanUpEmptyTag(long nodeId) {
+		if (depth > 0 && out.isHasChild(nodeIdStack[depth - 1], nodeId)) {
+			out.undo();
+			out.undo();
 		}
 	}
 
-	private void handleTextValue(String nodeId, String typePop, String value) {
+	private void handleTextValue(long nodeId, String typePop, String value) {
 
 		if (builder.autoDetectLiteralProperties) {
 
 			// check if element has no attributes or child elements
-			if (out.peek().equals(createTriple(nodeId, RDF.type.getURI(), typePop))) {
+			if (out.isType(nodeId)) {
 
 				// check if root element
-				if (nodeIdStack.isEmpty()) {
+				if (depth == 0) {
 					// use hasValue with root element
-					out.println(createTripleLiteral(nodeId, XmlToRdfVocabulary.hasValue, value));
+					out.literal(nodeId, XmlToRdfVocabulary.hasValue, value);
 
 				} else {
 					// remove rdf:type and hasChild statements
-					out.pop();
-					out.pop();
+					out.undo();
+					out.undo();
 
 					// print value directly on property to parent element
-					out.println(createTripleLiteral(nodeIdStack.peek(), typePop, value));
+					out.literal(nodeIdStack[depth - 1], typePop, value);
 				}
 
 			} else {
 				// if there are attributes or child elements, then print using hasValue
-				out.println(createTripleLiteral(nodeId, XmlToRdfVocabulary.hasValue, value));
+				out.literal(nodeId, XmlToRdfVocabulary.hasValue, value);
 			}
 
 		} else {
 			// print using hasValue
-			out.println(createTripleLiteral(nodeId, XmlToRdfVocabulary.hasValue, value));
+			out.literal(nodeId, XmlToRdfVocabulary.hasValue, value);
 		}
 	}
 
@@ -192,46 +194,4 @@ public class FastSaxHandler extends org.xml.sax.helpers.DefaultHandler {
 		stringBuilderStack.peek().append(ch, start, length);
 	}
 
-	private String createTriple(String subject, String predicate, String object) {
-
-		final boolean subjectIsBlank = subject.startsWith(BLANK_NODE_PREFIX);
-		final boolean objectIsBlank = object.startsWith(BLANK_NODE_PREFIX);
-
-		if (subjectIsBlank) {
-			if (objectIsBlank) {
-				return subject + " <" + predicate + "> " + object + '.';
-
-			} else {
-				return subject + " <" + predicate + "> <" + object + ">.";
-
-			}
-		} else {
-			if (objectIsBlank) {
-				return '<' + subject + "> <" + predicate + "> " + object + '.';
-
-			} else {
-				return '<' + subject + "> <" + predicate + "> <" + object + ">.";
-
-			}
-		}
-
-	}
-
-	private String createTripleLiteral(String subject, String predicate, String literal) {
-		literal = literal
-			.replace("\\", "\\\\")
-			.replace("\"", "\\\"");
-
-		final boolean oIsBlank = subject.startsWith(BLANK_NODE_PREFIX);
-		if (oIsBlank) {
-			return subject + " <" + predicate + "> \"\"\"" + literal + "\"\"\".";
-
-		} else {
-			return '<' + subject + "> <" + predicate + "> \"\"\"" + literal + "\"\"\" .";
-
-		}
-
-	}
-
 }
-
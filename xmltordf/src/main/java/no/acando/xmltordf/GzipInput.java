@@ -0,0 +1,75 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Detects gzip compressed input by its magic number. XML can not start with these bytes, so uncompressed input is
+ * never mistaken for gzip.
+ */
+final class GzipInput {
+
+	private static final int MAGIC_0 = 0x1f;
+	private static final int MAGIC_1 = 0x8b;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private GzipInput() {
+	}
+
+	/**
+	 * @return the input decompressed if it is gzip, otherwise the input itself where possible so it can still be read twice
+	 */
+	static InputStream decompress(InputStream in) throws IOException {
+		if (in instanceof FileInputStream) {
+			FileChannel channel = ((FileInputStream) in).getChannel();
+			long position = channel.position();
+			boolean gzip = isGzip(in.read(), in.read());
+			channel.position(position);
+			return gzip ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+		}
+
+		if (in.markSupported()) {
+			in.mark(2);
+			boolean gzip = isGzip(in.read(), in.read());
+			in.reset();
+			return gzip ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+		}
+
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		int first = pushback.read();
+		int second = first < 0 ? -1 : pushback.read();
+		if (second >= 0) {
+			pushback.unread(second);
+		}
+		if (first >= 0) {
+			pushback.unread(first);
+		}
+		return isGzip(first, second) ? new GZIPInputStream(pushback, BUFFER_SIZE) : pushback;
+	}
+
+	private static boolean isGzip(int first, int second) {
+		return first == MAGIC_0 && second == MAGIC_1;
+	}
+
+}
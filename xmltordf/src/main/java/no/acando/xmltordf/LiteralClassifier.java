@@ -0,0 +1,238 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+/**
+ * Finds the XSD datatype of a literal with autoTypeLiterals(true). The characters are scanned once, without parsing
+ * the value or throwing exceptions, and the same rules are used by all the handlers.
+ */
+final class LiteralClassifier {
+
+	enum Type {
+		plain, integer, decimal, xsdDouble, dateTime, date
+	}
+
+	private LiteralClassifier() {
+	}
+
+	static Type classify(String literal) {
+		int length = literal.length();
+		if (length == 0) {
+			return Type.plain;
+		}
+
+		// dates start with a year of at least four digits followed by '-'
+		int yearDigits = digits(literal, literal.charAt(0) == '-' ? 1 : 0, length);
+		if (yearDigits >= 4) {
+			int afterYear = (literal.charAt(0) == '-' ? 1 : 0) + yearDigits;
+			if (afterYear < length && literal.charAt(afterYear) == '-') {
+				return classifyDate(literal, afterYear, length);
+			}
+		}
+
+		return classifyNumber(literal, length);
+	}
+
+	// [+-]?(digits)(.digits)?([eE][+-]?digits)? with optional whitespace around, as xsd numbers collapse whitespace
+	private static Type classifyNumber(String literal, int length) {
+		int start = 0;
+		while (start < length && literal.charAt(start) <= ' ') {
+			start++;
+		}
+		int end = length;
+		while (end > start && literal.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (start == end) {
+			return Type.plain;
+		}
+
+		int i = start;
+		char c = literal.charAt(i);
+		if (c == '+' || c == '-') {
+			i++;
+		}
+
+		int integerDigits = digits(literal, i, end);
+		i += integerDigits;
+
+		int fractionDigits = 0;
+		boolean decimalPoint = false;
+		if (i < end && literal.charAt(i) == '.') {
+			decimalPoint = true;
+			i++;
+			fractionDigits = digits(literal, i, end);
+			i += fractionDigits;
+		}
+
+		if (integerDigits + fractionDigits == 0) {
+			return Type.plain;
+		}
+
+		if (i == end) {
+			return decimalPoint ? Type.decimal : Type.integer;
+		}
+
+		c = literal.charAt(i);
+		if (c != 'e' && c != 'E') {
+			return Type.plain;
+		}
+		i++;
+		if (i < end && (literal.charAt(i) == '+' || literal.charAt(i) == '-')) {
+			i++;
+		}
+		int exponentDigits = digits(literal, i, end);
+		if (exponentDigits == 0 || i + exponentDigits != end) {
+			return Type.plain;
+		}
+
+		return Type.xsdDouble;
+	}
+
+	// yyyy-MM-dd, optionally followed by THH:mm[:ss[.fffffffff]], optionally followed by a timezone
+	private static Type classifyDate(String literal, int afterYear, int length) {
+		long year = number(literal, literal.charAt(0) == '-' ? 1 : 0, afterYear);
+		if (year > 999_999_999L) {
+			return Type.plain;
+		}
+		if (literal.charAt(0) == '-') {
+			year = -year;
+		}
+
+		int i = afterYear + 1;
+		if (!twoDigits(literal, i, length)) {
+			return Type.plain;
+		}
+		int month = (int) number(literal, i, i + 2);
+		i += 2;
+		if (i >= length || literal.charAt(i) != '-' || !twoDigits(literal, i + 1, length)) {
+			return Type.plain;
+		}
+		int day = (int) number(literal, i + 1, i + 3);
+		i += 3;
+
+		if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+			return Type.plain;
+		}
+
+		if (i == length) {
+			return Type.date;
+		}
+
+		if (literal.charAt(i) != 'T') {
+			return timezone(literal, i, length) ? Type.date : Type.plain;
+		}
+		i++;
+
+		// hours and minutes are required, seconds and fractions are optional
+		if (!twoDigits(literal, i, length) || i + 2 >= length || literal.charAt(i + 2) != ':' || !twoDigits(literal, i + 3, length)) {
+			return Type.plain;
+		}
+		if (number(literal, i, i + 2) > 23 || number(literal, i + 3, i + 5) > 59) {
+			return Type.plain;
+		}
+		i += 5;
+
+		if (i < length && literal.charAt(i) == ':') {
+			if (!twoDigits(literal, i + 1, length) || number(literal, i + 1, i + 3) > 59) {
+				return Type.plain;
+			}
+			i += 3;
+
+			if (i < length && literal.charAt(i) == '.') {
+				int fractionDigits = digits(literal, i + 1, length);
+				if (fractionDigits == 0 || fractionDigits > 9) {
+					return Type.plain;
+				}
+				i += 1 + fractionDigits;
+			}
+		}
+
+		if (i == length || timezone(literal, i, length)) {
+			return Type.dateTime;
+		}
+
+		return Type.plain;
+	}
+
+	// Z or +HH:MM or +HH:MM:SS until the end of the literal
+	private static boolean timezone(String literal, int i, int length) {
+		char c = literal.charAt(i);
+		if (c == 'Z') {
+			return i + 1 == length;
+		}
+		if (c != '+' && c != '-') {
+			return false;
+		}
+		i++;
+
+		if (!twoDigits(literal, i, length) || i + 2 >= length || literal.charAt(i + 2) != ':' || !twoDigits(literal, i + 3, length)) {
+			return false;
+		}
+		if (number(literal, i, i + 2) > 18 || number(literal, i + 3, i + 5) > 59) {
+			return false;
+		}
+		i += 5;
+
+		if (i == length) {
+			return true;
+		}
+
+		return literal.charAt(i) == ':' && twoDigits(literal, i + 1, length) && i + 3 == length && number(literal, i + 1, i + 3) <= 59;
+	}
+
+	private static int daysInMonth(long year, int month) {
+		switch (month) {
+			case 2:
+				boolean leapYear = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+				return leapYear ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	private static int digits(String literal, int from, int to) {
+		int i = from;
+		while (i < to && isDigit(literal.charAt(i))) {
+			i++;
+		}
+		return i - from;
+	}
+
+	private static boolean twoDigits(String literal, int from, int length) {
+		return from + 2 <= length && isDigit(literal.charAt(from)) && isDigit(literal.charAt(from + 1));
+	}
+
+	// only called on runs of digits, stops counting once the value is larger than any valid year
+	private static long number(String literal, int from, int to) {
+		long value = 0;
+		for (int i = from; i < to && value <= 999_999_999L; i++) {
+			value = value * 10 + (literal.charAt(i) - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file through memory mapped regions, or a buffer that is already in memory, so the parser copies straight
+ * from the page cache instead of going through read calls and a buffered stream. Supports mark and reset over the
+ * whole input, which lets the input be read twice.
+ */
+final class MappedInputStream extends InputStream {
+
+	// a single mapping can not be larger than 2 GB, larger files are mapped one region at a time
+	private static final long REGION_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	private final long size;
+
+	private ByteBuffer region;
+	private long regionStart;
+	private long mark;
+
+	private MappedInputStream(FileChannel channel, long size, ByteBuffer region) {
+		this.channel = channel;
+		this.size = size;
+		this.region = region;
+	}
+
+	static MappedInputStream open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			return new MappedInputStream(channel, size, map(channel, 0, size));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the bytes between the position and the limit of the buffer, without changing the buffer.
+	 */
+	static MappedInputStream of(ByteBuffer buffer) {
+		ByteBuffer slice = buffer.slice();
+		return new MappedInputStream(null, slice.remaining(), slice);
+	}
+
+	private static ByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+	}
+
+	private boolean hasRemaining() throws IOException {
+		if (region.hasRemaining()) {
+			return true;
+		}
+		long next = regionStart + region.limit();
+		if (channel == null || next >= size) {
+			return false;
+		}
+		seek(next);
+		return true;
+	}
+
+	private void seek(long position) throws IOException {
+		if (position >= regionStart && position <= regionStart + region.limit()) {
+			region.position((int) (position - regionStart));
+		} else {
+			regionStart = position;
+			region = map(channel, position, size);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!hasRemaining()) {
+			return -1;
+		}
+		return region.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!hasRemaining()) {
+			return -1;
+		}
+		int read = Math.min(len, region.remaining());
+		region.get(b, off, read);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long position = regionStart + region.position();
+		long skipped = Math.max(0, Math.min(n, size - position));
+		seek(position + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return region.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	// the whole input can be read again, so the read limit is ignored
+	@Override
+	public void mark(int readlimit) {
+		mark = regionStart + region.position();
+	}
+
+	@Override
+	public void reset() throws IOException {
+		seek(mark);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,316 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes triples straight into a reusable byte buffer. Strings are UTF-8 encoded and escaped in a single pass and
+ * the buffer is written to the underlying stream in large blocks.
+ */
+final class NTriplesWriter {
+
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	// the longest UTF-8 sequence we write for a single char, or a char pair with surrogates
+	private static final int MAX_BYTES_PER_CHAR = 4;
+
+	private static final byte[] DATATYPE_START = {'"', '^', '^', '<'};
+	private static final byte[] END_OF_TRIPLE = {' ', '.', '\n'};
+	private static final byte[] LONG_QUOTE = {'"', '"', '"'};
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int position = 0;
+
+	NTriplesWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	NTriplesWriter(OutputStream out, int bufferSize) {
+		this(out, new byte[Math.max(bufferSize, 64)]);
+	}
+
+	NTriplesWriter(OutputStream out, byte[] buffer) {
+		this.out = out;
+		this.buffer = buffer;
+	}
+
+	static byte[] newBuffer() {
+		return new byte[DEFAULT_BUFFER_SIZE];
+	}
+
+	void triple(String subject, String predicate, String object) {
+		resource(subject);
+		space();
+		iri(predicate);
+		space();
+		resource(object);
+		endOfTriple();
+	}
+
+	void tripleLiteral(String subject, String predicate, String literal) {
+		resource(subject);
+		space();
+		iri(predicate);
+		space();
+		literal(literal);
+		endOfTriple();
+	}
+
+	void tripleLiteral(String subject, String predicate, String literal, String datatype) {
+		if (datatype == null) {
+			tripleLiteral(subject, predicate, literal);
+			return;
+		}
+
+		resource(subject);
+		space();
+		iri(predicate);
+		space();
+		writeByte('"');
+		escaped(literal);
+		writeBytes(DATATYPE_START);
+		utf8(datatype);
+		writeByte('>');
+		endOfTriple();
+	}
+
+	void tripleLiteral(String subject, String predicate, long value, String datatype) {
+		resource(subject);
+		space();
+		iri(predicate);
+		space();
+		writeByte('"');
+		number(value);
+		writeBytes(DATATYPE_START);
+		utf8(datatype);
+		writeByte('>');
+		endOfTriple();
+	}
+
+	/**
+	 * Writes an IRI in angle brackets, or the identifier as is if it is a blank node.
+	 */
+	void resource(String node) {
+		if (AdvancedSaxHandler.isBlankNode(node)) {
+			utf8(node);
+		} else {
+			iri(node);
+		}
+	}
+
+	void iri(String iri) {
+		writeByte('<');
+		utf8(iri);
+		writeByte('>');
+	}
+
+	void literal(String literal) {
+		writeByte('"');
+		escaped(literal);
+		writeByte('"');
+	}
+
+	/**
+	 * Writes a blank node identifier made of a prefix and a number, e.g. _:index42, without creating a String.
+	 */
+	void blankNode(byte[] prefix, long id) {
+		writeBytes(prefix);
+		number(id);
+	}
+
+	/**
+	 * Writes a literal in triple quotes, so only backslashes and quotes are escaped.
+	 */
+	void longLiteral(String literal) {
+		writeBytes(LONG_QUOTE);
+		write(literal, true, false);
+		writeBytes(LONG_QUOTE);
+	}
+
+	void space() {
+		writeByte(' ');
+	}
+
+	void endOfTriple() {
+		writeBytes(END_OF_TRIPLE);
+	}
+
+	/**
+	 * Writes a line that has already been formatted.
+	 */
+	void line(String line) {
+		utf8(line);
+		writeByte('\n');
+	}
+
+	void raw(char c) {
+		writeByte(c);
+	}
+
+	void append(ByteArrayOutputStream output) {
+		try {
+			flushBuffer();
+			output.writeTo(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	void flush() {
+		try {
+			flushBuffer();
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	void close() {
+		try {
+			flushBuffer();
+			out.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (position + bytes > buffer.length) {
+			try {
+				flushBuffer();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[position++] = (byte) b;
+	}
+
+	private void writeBytes(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void number(long value) {
+		if (value == Long.MIN_VALUE) {
+			utf8(Long.toString(value));
+			return;
+		}
+
+		ensureCapacity(20);
+
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+
+		int end = position + digits;
+		for (int i = end - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		position = end;
+	}
+
+	private void utf8(String string) {
+		write(string, false, false);
+	}
+
+	private void escaped(String string) {
+		write(string, true, true);
+	}
+
+	private void write(String string, boolean escape, boolean escapeLineBreaks) {
+		int length = string.length();
+		for (int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+
+			if (position + MAX_BYTES_PER_CHAR > buffer.length) {
+				ensureCapacity(MAX_BYTES_PER_CHAR);
+			}
+
+			if (c < 0x80) {
+				if (escape) {
+					switch (c) {
+						case '\\':
+							buffer[position++] = '\\';
+							buffer[position++] = '\\';
+							continue;
+						case '"':
+							buffer[position++] = '\\';
+							buffer[position++] = '"';
+							continue;
+						case '\n':
+							if (!escapeLineBreaks) {
+								break;
+							}
+							buffer[position++] = '\\';
+							buffer[position++] = 'n';
+							continue;
+						case '\r':
+							if (!escapeLineBreaks) {
+								break;
+							}
+							buffer[position++] = '\\';
+							buffer[position++] = 'r';
+							continue;
+						default:
+					}
+				}
+				buffer[position++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, string.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogate, same replacement as String.getBytes()
+				buffer[position++] = '?';
+			} else {
+				buffer[position++] = (byte) (0xE0 | (c >> 12));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+}
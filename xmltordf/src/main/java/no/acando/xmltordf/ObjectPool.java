@@ -0,0 +1,65 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps idle objects around for reuse by later conversions. Safe for concurrent use, any number of objects can be
+ * in use at the same time but at most maxIdle are kept.
+ */
+final class ObjectPool<T> {
+
+	private static final int DEFAULT_MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+	private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final int maxIdle;
+
+	ObjectPool() {
+		this(DEFAULT_MAX_IDLE);
+	}
+
+	ObjectPool(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return an idle object, or null if the caller has to create a new one
+	 */
+	T poll() {
+		T object = idle.poll();
+		if (object != null) {
+			idleCount.decrementAndGet();
+		}
+		return object;
+	}
+
+	/**
+	 * @return false if the pool is full and the object was not kept
+	 */
+	boolean release(T object) {
+		if (idleCount.incrementAndGet() <= maxIdle) {
+			idle.offer(object);
+			return true;
+		}
+		idleCount.decrementAndGet();
+		return false;
+	}
+
+}
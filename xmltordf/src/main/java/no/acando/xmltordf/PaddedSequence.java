@@ -0,0 +1,52 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A sequence counter padded to fill its own cache lines, so that the producer and consumer counters in
+ * CustomBlockingQueue do not share a cache line.
+ */
+final class PaddedSequence extends PaddedSequenceValue {
+
+	private static final AtomicLongFieldUpdater<PaddedSequenceValue> UPDATER = AtomicLongFieldUpdater.newUpdater(PaddedSequenceValue.class, "value");
+
+	long p9, p10, p11, p12, p13, p14, p15;
+
+	long get() {
+		return value;
+	}
+
+	void set(long value) {
+		this.value = value;
+	}
+
+	// ordered store, cheaper than a volatile write but still visible to the other thread in order
+	void lazySet(long value) {
+		UPDATER.lazySet(this, value);
+	}
+
+}
+
+abstract class PaddedSequenceLeftPadding {
+	long p1, p2, p3, p4, p5, p6, p7;
+}
+
+abstract class PaddedSequenceValue extends PaddedSequenceLeftPadding {
+	volatile long value;
+}
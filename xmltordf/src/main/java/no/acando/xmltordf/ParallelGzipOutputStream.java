@@ -0,0 +1,263 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzip by compressing blocks of the output on a pool of threads, the same way as pigz. Every block is a raw
+ * deflate stream that ends with a sync flush, so the blocks can simply be written one after the other, and every
+ * block uses the end of the previous block as its dictionary to compress almost as well as a single stream.
+ */
+final class ParallelGzipOutputStream extends OutputStream {
+
+	private static final int BLOCK_SIZE = 1 << 17;
+	private static final int DICTIONARY_SIZE = 1 << 15;
+
+	private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final int maxPendingBlocks;
+
+	private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+	private final ObjectPool<Deflater> deflaters = new ObjectPool<>();
+	private final CRC32 crc = new CRC32();
+
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int position = 0;
+	private byte[] dictionary;
+	private long uncompressedSize = 0;
+	private boolean finished = false;
+	// set once the deflaters have been ended, guarded by the deflaters pool
+	private boolean deflatersEnded = false;
+
+	ParallelGzipOutputStream(OutputStream out, int threads) throws IOException {
+		this.out = out;
+		this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "xmltordf-gzip");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.maxPendingBlocks = threads * 2;
+
+		out.write(HEADER);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (position == block.length) {
+			submitBlock(false);
+		}
+		block[position++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (position == block.length) {
+				submitBlock(false);
+			}
+			int length = Math.min(len, block.length - position);
+			System.arraycopy(b, off, block, position, length);
+			position += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	/**
+	 * Compresses the partly filled block with a sync flush and waits for all pending blocks, so everything written so
+	 * far can be decompressed by the reader. Like pigz, this costs a little compression for every flush.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (!finished && position > 0) {
+			submit(Arrays.copyOf(block, position), position, false);
+			position = 0;
+		}
+		writeBlocks(0);
+		out.flush();
+	}
+
+	/**
+	 * Writes the rest of the output and the gzip trailer without closing the underlying stream.
+	 */
+	void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+
+		try {
+			submitBlock(true);
+			writeBlocks(0);
+
+			writeInt((int) crc.getValue());
+			writeInt((int) uncompressedSize);
+		} finally {
+			try {
+				executor.shutdownNow();
+			} finally {
+				endDeflaters();
+			}
+		}
+	}
+
+	/**
+	 * Stops the compression threads after a failed conversion, without writing anything more.
+	 */
+	void abort() {
+		finished = true;
+		try {
+			executor.shutdownNow();
+		} finally {
+			endDeflaters();
+		}
+	}
+
+	// frees the native memory of the idle deflaters, deflaters still in use by a compression task are ended when
+	// the task returns them
+	private void endDeflaters() {
+		synchronized (deflaters) {
+			deflatersEnded = true;
+			Deflater deflater;
+			while ((deflater = deflaters.poll()) != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	private void releaseDeflater(Deflater deflater) {
+		synchronized (deflaters) {
+			if (deflatersEnded || !deflaters.release(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void submitBlock(boolean last) throws IOException {
+		submit(block, position, last);
+
+		block = new byte[BLOCK_SIZE];
+		position = 0;
+	}
+
+	private void submit(byte[] input, int length, boolean last) throws IOException {
+		byte[] previous = dictionary;
+
+		crc.update(input, 0, length);
+		uncompressedSize += length;
+
+		// the dictionary has to be the last bytes before the next block, flushed blocks may be shorter than it
+		if (length >= DICTIONARY_SIZE) {
+			dictionary = Arrays.copyOfRange(input, length - DICTIONARY_SIZE, length);
+		} else if (length > 0) {
+			int kept = previous == null ? 0 : Math.min(previous.length, DICTIONARY_SIZE - length);
+			dictionary = new byte[kept + length];
+			if (kept > 0) {
+				System.arraycopy(previous, previous.length - kept, dictionary, 0, kept);
+			}
+			System.arraycopy(input, 0, dictionary, kept, length);
+		}
+
+		pendingBlocks.add(executor.submit(() -> compress(input, length, previous, last)));
+
+		writeBlocks(maxPendingBlocks);
+	}
+
+	private byte[] compress(byte[] input, int length, byte[] dictionary, boolean last) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(input, 0, length);
+			if (last) {
+				deflater.finish();
+			}
+
+			byte[] output = new byte[length + (length >> 3) + 64];
+			int size = 0;
+			while (true) {
+				if (size == output.length) {
+					output = Arrays.copyOf(output, output.length * 2);
+				}
+				size += deflater.deflate(output, size, output.length - size, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+
+				// the flush is done when the deflater did not fill the output
+				if (last ? deflater.finished() : size < output.length) {
+					break;
+				}
+			}
+
+			return Arrays.copyOf(output, size);
+		} finally {
+			deflater.reset();
+			releaseDeflater(deflater);
+		}
+	}
+
+	// writes the compressed blocks in order, waiting for them until at most maxRemaining are left
+	private void writeBlocks(int maxRemaining) throws IOException {
+		while (pendingBlocks.size() > maxRemaining) {
+			writeBlock(pendingBlocks.poll());
+		}
+	}
+
+	private void writeBlock(Future<byte[]> compressed) throws IOException {
+		try {
+			out.write(compressed.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void writeInt(int value) throws IOException {
+		out.write(value & 0xff);
+		out.write((value >> 8) & 0xff);
+		out.write((value >> 16) & 0xff);
+		out.write((value >> 24) & 0xff);
+	}
+
+}
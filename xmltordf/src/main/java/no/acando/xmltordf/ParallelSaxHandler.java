@@ -0,0 +1,364 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the document into records and converts the records on a pool of worker threads. Everything outside of the
+ * records is converted by the wrapped handler on the parsing thread. The output from the workers is written back
+ * in document order.
+ */
+final class ParallelSaxHandler extends org.xml.sax.helpers.DefaultHandler {
+
+	// number of SAX events to collect before handing a chunk of records to a worker
+	private static final int CHUNK_SIZE = 10000;
+
+	private final AdvancedSaxHandlerString handler;
+	private final Builder.AdvancedStream builder;
+	private final ExecutorService executor;
+	private final int maxPendingChunks;
+
+	private final Deque<Chunk> pendingChunks = new ArrayDeque<>();
+	private final Set<Element<String, String>> parentsWithRecords = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	private Chunk chunk;
+	private long chunkCounter = 0;
+
+	private int depth = 0;
+	private int recordDepth = 0;
+	private long elementsInRecord = 0;
+	// depth inside a skipped element of the record, the elements in there are not numbered
+	private int skipDepth = 0;
+
+	ParallelSaxHandler(AdvancedSaxHandlerString handler, Builder.AdvancedStream builder, ExecutorService executor) {
+		this.handler = handler;
+		this.builder = builder;
+		this.executor = executor;
+		this.maxPendingChunks = builder.parallelThreads * 2;
+	}
+
+	@Override
+	public void startPrefixMapping(String prefix, String uri) throws SAXException {
+		// the handler keeps every mapping as the serial conversion does, also the ones on and inside records, and the
+		// worker of the open chunk gets the ones after its copy of the mappings was taken
+		handler.startPrefixMapping(prefix, uri);
+		if (chunk != null) {
+			chunk.events.add(new PrefixMappingEvent(prefix, uri));
+		}
+	}
+
+	@Override
+	public void startElement(String namespace, String localName, String qName, Attributes attributes) throws SAXException {
+
+		if (recordDepth > 0) {
+			chunk.events.add(new StartElementEvent(namespace, localName, qName, new AttributesImpl(attributes)));
+			recordDepth++;
+
+			// count the elements the same way as the handler, which does not number the ones inside a skipped element
+			if (skipDepth > 0) {
+				skipDepth++;
+			} else {
+				elementsInRecord++;
+				if (handler.isSkipped(namespace, localName, attributes)) {
+					skipDepth = 1;
+				}
+			}
+			return;
+		}
+
+		handler.startElement(namespace, localName, qName, attributes);
+		depth++;
+
+		if (handler.isSkipping()) {
+			return;
+		}
+
+		Element<String, String> element = handler.peekElement();
+		if (!isRecord(element) || !canSplit(element)) {
+			return;
+		}
+
+		// the record has been started by the handler, the rest of it is converted by a worker
+		handler.popElement();
+
+		Element<String, String> parent = element.parent;
+		if (chunk != null && (chunk.parent != parent || chunk.events.size() >= CHUNK_SIZE)) {
+			submitChunk();
+		}
+		if (chunk == null) {
+			chunk = new Chunk(chunkCounter++, parent, new HashMap<>(handler.prefixUriMap));
+		}
+
+		chunk.events.add(new StartRecordEvent(element, handler.index));
+		parentsWithRecords.add(parent);
+
+		recordDepth = 1;
+		elementsInRecord = 0;
+		skipDepth = 0;
+
+	}
+
+	@Override
+	public void endElement(String namespace, String localName, String qName) throws SAXException {
+
+		if (recordDepth > 0) {
+			chunk.events.add(new EndElementEvent(namespace, localName, qName));
+			recordDepth--;
+			if (skipDepth > 0) {
+				skipDepth--;
+			}
+			if (recordDepth == 0) {
+				// the worker continues counting from where the record started
+				handler.index += elementsInRecord;
+				depth--;
+			}
+			return;
+		}
+
+		if (parentsWithRecords.remove(handler.peekElement())) {
+			submitChunk();
+			drainChunks(0);
+		}
+
+		handler.endElement(namespace, localName, qName);
+		depth--;
+
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) throws SAXException {
+		if (recordDepth > 0) {
+			chunk.events.add(new CharactersEvent(Arrays.copyOfRange(ch, start, start + length)));
+		} else {
+			handler.characters(ch, start, length);
+		}
+	}
+
+	@Override
+	public void endDocument() throws SAXException {
+		submitChunk();
+		drainChunks(0);
+		handler.endDocument();
+	}
+
+	private boolean isRecord(Element<String, String> element) {
+		if (builder.parallelRecordElement == null) {
+			return depth == 2;
+		}
+		return builder.parallelRecordElement.equals(element.getType());
+	}
+
+	private boolean canSplit(Element<String, String> element) {
+		Element<String, String> parent = element.parent;
+
+		return parent != null
+			&& parent.uri() != null
+			&& !parent.containsMixedContent
+			&& !parent.useElementAsPredicate
+			&& !builder.useHashmapForChildren;
+	}
+
+	private void submitChunk() throws SAXException {
+		if (chunk == null) {
+			return;
+		}
+
+		Chunk submitted = chunk;
+		chunk = null;
+
+		submitted.future = executor.submit(submitted::convert);
+		pendingChunks.add(submitted);
+
+		drainChunks(maxPendingChunks);
+	}
+
+	private void drainChunks(int maxRemaining) throws SAXException {
+		while (pendingChunks.size() > maxRemaining) {
+			Chunk done = pendingChunks.poll();
+
+			try {
+				handler.writeOutput(done.future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SAXException(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof SAXException) {
+					throw (SAXException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new SAXException((Exception) cause);
+			}
+
+			done.parent.addChildrenWithAutoDetectedAsLiteralProperty(done.stub);
+		}
+	}
+
+	private class Chunk {
+		final long id;
+		final Element<String, String> parent;
+		final String parentUri;
+		final String parentType;
+		final Map<String, String> prefixUriMap;
+		final List<SaxEvent> events = new ArrayList<>();
+
+		Future<ByteArrayOutputStream> future;
+		Element<String, String> stub;
+
+		Chunk(long id, Element<String, String> parent, Map<String, String> prefixUriMap) {
+			this.id = id;
+			this.parent = parent;
+			this.parentUri = parent.uri();
+			this.parentType = parent.getType();
+			this.prefixUriMap = prefixUriMap;
+		}
+
+		ByteArrayOutputStream convert() throws SAXException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			AdvancedSaxHandlerString worker = new AdvancedSaxHandlerString(out, builder);
+			worker.blankNodePrefix = handler.blankNodePrefix + "c" + id + "_";
+			worker.prefixUriMap.putAll(prefixUriMap);
+			worker.prescannedIds = handler.prescannedIds;
+
+			// stands in for the parent of the records, which is converted by the parsing thread
+			stub = new Element<>(worker, builder);
+			stub.uri = parentUri;
+			stub.setType(parentType);
+			worker.pushElement(stub);
+
+			for (SaxEvent event : events) {
+				event.replay(worker, stub);
+			}
+
+			worker.popElement();
+			stub.createDelayedTriples();
+			worker.endDocument();
+
+			return out;
+		}
+	}
+
+	private interface SaxEvent {
+		void replay(AdvancedSaxHandlerString handler, Element<String, String> parent) throws SAXException;
+	}
+
+	private static class StartRecordEvent implements SaxEvent {
+		final Element<String, String> record;
+		final long index;
+
+		StartRecordEvent(Element<String, String> record, long index) {
+			this.record = record;
+			this.index = index;
+		}
+
+		@Override
+		public void replay(AdvancedSaxHandlerString handler, Element<String, String> parent) {
+			record.reparent(handler, parent);
+			handler.pushElement(record);
+			handler.index = index;
+		}
+	}
+
+	private static class StartElementEvent implements SaxEvent {
+		final String namespace;
+		final String localName;
+		final String qName;
+		final Attributes attributes;
+
+		StartElementEvent(String namespace, String localName, String qName, Attributes attributes) {
+			this.namespace = namespace;
+			this.localName = localName;
+			this.qName = qName;
+			this.attributes = attributes;
+		}
+
+		@Override
+		public void replay(AdvancedSaxHandlerString handler, Element<String, String> parent) throws SAXException {
+			handler.startElement(namespace, localName, qName, attributes);
+		}
+	}
+
+	private static class EndElementEvent implements SaxEvent {
+		final String namespace;
+		final String localName;
+		final String qName;
+
+		EndElementEvent(String namespace, String localName, String qName) {
+			this.namespace = namespace;
+			this.localName = localName;
+			this.qName = qName;
+		}
+
+		@Override
+		public void replay(AdvancedSaxHandlerString handler, Element<String, String> parent) throws SAXException {
+			handler.endElement(namespace, localName, qName);
+		}
+	}
+
+	private static class CharactersEvent implements SaxEvent {
+		final char[] ch;
+
+		CharactersEvent(char[] ch) {
+			this.ch = ch;
+		}
+
+		@Override
+		public void replay(AdvancedSaxHandlerString handler, Element<String, String> parent) throws SAXException {
+			handler.characters(ch, 0, ch.length);
+		}
+	}
+
+	private static class PrefixMappingEvent implements SaxEvent {
+		final String prefix;
+		final String uri;
+
+		PrefixMappingEvent(String prefix, String uri) {
+			this.prefix = prefix;
+			this.uri = uri;
+		}
+
+		@Override
+		public void replay(AdvancedSaxHandlerString handler, Element<String, String> parent) throws SAXException {
+			handler.startPrefixMapping(prefix, uri);
+		}
+	}
+
+}
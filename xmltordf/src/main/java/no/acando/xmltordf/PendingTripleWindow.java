@@ -0,0 +1,160 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import org.apache.jena.vocabulary.RDF;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Holds the last few triples from FastSaxHandler so that they can be undone, e.g. the rdf:type and hasChild triples
+ * of an element that turns out to be empty. The triples are kept as the kind of triple and the numeric blank node ids,
+ * so deciding what to undo is a comparison of numbers, and the text is only formatted when a triple leaves the window.
+ */
+final class PendingTripleWindow {
+
+	private static final int SIZE = 10;
+
+	private static final byte TYPE = 0;
+	private static final byte HAS_CHILD = 1;
+	private static final byte LITERAL = 2;
+
+	private static final byte[] BLANK_NODE_PREFIX = (Common.BLANK_NODE_PREFIX + "index").getBytes(StandardCharsets.UTF_8);
+	private static final String RDF_TYPE = RDF.type.getURI();
+
+	private final NTriplesWriter out;
+	private final ConversionMetrics metrics;
+
+	// a ring buffer, head is the index of the newest triple
+	private final byte[] kinds = new byte[SIZE];
+	private final long[] subjects = new long[SIZE];
+	private final long[] objects = new long[SIZE];
+	private final String[] predicates = new String[SIZE];
+	private final String[] values = new String[SIZE];
+	private int head = SIZE - 1;
+	private int count = 0;
+
+	PendingTripleWindow(NTriplesWriter out, ConversionMetrics metrics) {
+		this.out = out;
+		this.metrics = metrics;
+	}
+
+	void type(long subject, String type) {
+		push(TYPE, subject, RDF_TYPE, -1, type);
+	}
+
+	void hasChild(long parent, long child) {
+		push(HAS_CHILD, parent, XmlToRdfVocabulary.hasChild, child, null);
+	}
+
+	void literal(long subject, String predicate, String value) {
+		push(LITERAL, subject, predicate, -1, value);
+	}
+
+	/**
+	 * Whether the newest triple is the rdf:type triple of the element, i.e. the element has no attributes or children.
+	 */
+	boolean isType(long subject) {
+		return count > 0 && kinds[head] == TYPE && subjects[head] == subject;
+	}
+
+	/**
+	 * Whether the triple before the newest one links the parent to the child.
+	 */
+	boolean isHasChild(long parent, long child) {
+		if (count < 2) {
+			return false;
+		}
+		int index = previous(head);
+		return kinds[index] == HAS_CHILD && subjects[index] == parent && objects[index] == child;
+	}
+
+	/**
+	 * Removes the newest triple without writing it.
+	 */
+	void undo() {
+		predicates[head] = null;
+		values[head] = null;
+		head = previous(head);
+		count--;
+	}
+
+	void flush() {
+		// newest first
+		while (count > 0) {
+			write(head);
+			undo();
+		}
+
+		out.flush();
+	}
+
+	private void push(byte kind, long subject, String predicate, long object, String value) {
+		if (count == SIZE) {
+			// the oldest triple can no longer be undone
+			write(next(head));
+			count--;
+		}
+
+		head = next(head);
+		kinds[head] = kind;
+		subjects[head] = subject;
+		predicates[head] = predicate;
+		objects[head] = object;
+		values[head] = value;
+		count++;
+	}
+
+	// triples can still be undone until they are written, so they are counted here
+	private void write(int index) {
+		out.blankNode(BLANK_NODE_PREFIX, subjects[index]);
+		out.space();
+		out.iri(predicates[index]);
+		out.space();
+
+		switch (kinds[index]) {
+			case TYPE:
+				out.resource(values[index]);
+				break;
+			case HAS_CHILD:
+				out.blankNode(BLANK_NODE_PREFIX, objects[index]);
+				break;
+			default:
+				out.longLiteral(values[index]);
+		}
+
+		out.raw('.');
+		out.raw('\n');
+
+		if (metrics != null) {
+			if (kinds[index] == LITERAL) {
+				metrics.literalTriple();
+			} else {
+				metrics.resourceTriple();
+			}
+		}
+	}
+
+	private static int next(int index) {
+		return index == SIZE - 1 ? 0 : index + 1;
+	}
+
+	private static int previous(int index) {
+		return index == 0 ? SIZE - 1 : index - 1;
+	}
+
+}
@@ -21,10 +21,28 @@ public class Property {
 	public String uriAttr;
 	public String qname;
 
+	// resolved name from the symbol table, used as long as uriAttr and qname have not been changed
+	private final SymbolTable.AttributeName attributeName;
+
 	public Property(String uriAttr, String qname, String value) {
 		this.uriAttr = uriAttr;
 		this.qname = qname;
 		this.value = value;
+		this.attributeName = null;
+	}
+
+	Property(SymbolTable.AttributeName attributeName, String value) {
+		this.uriAttr = attributeName.namespace;
+		this.qname = attributeName.localName;
+		this.value = value;
+		this.attributeName = attributeName;
+	}
+
+	String getPredicate() {
+		if (attributeName != null && uriAttr == attributeName.namespace && qname == attributeName.localName) {
+			return attributeName.predicate;
+		}
+		return uriAttr + qname;
 	}
 
 	public String getValue() {
@@ -17,103 +17,113 @@ limitations under the License.
 package no.acando.xmltordf;
 
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * The paths from renameElement(XmlPath, ...) as a trie from the renamed element up through its ancestors. Matching an
+ * element is one hash lookup per ancestor, and the deepest matching node decides the new name.
+ */
 class ReverseElementTree {
 
-	List<Node> roots = new ArrayList<>();
+	private final Node roots = new Node(null);
 
 	void insert(Builder.XmlPath path, String renameTo) {
-
-
-		for (Node root : roots) {
-			if (root.elementName.equals(path.getTail())) {
-				root.add(path.shorten(), renameTo);
-				return;
-			}
+		Node node = roots;
+		for (int i = path.lastElement; i >= 0; i--) {
+			node = node.child(path.path[i]);
 		}
 
-		Node e = new Node();
-		roots.add(e);
-		e.elementName = path.getTail();
-		if (path.last()) {
-			e.newElementName = renameTo;
+		if (node.newElementName != null) {
+			throw new RuntimeException("Attempted to overwrite key: '" + String.join(" ", path.path) + "' with value: '" + renameTo + "'");
 		}
-		e.add(path.shorten(), renameTo);
-
-
+		node.newElementName = renameTo;
 	}
 
+	// the node for paths ending with this type, null if no path does
+	Node root(String type) {
+		return roots.next.get(type);
+	}
 
 	public String get(Element element) {
-		for (Node root : roots) {
-			if (root.elementName.equals(element.getType())) {
-				if (element.parent != null) {
-					return root.get(element.parent);
-				} else {
-					return root.newElementName;
-				}
-			}
+		Node root = root(element.getType());
+		if (root == null) {
+			return null;
 		}
-
-		return null;
+		return root.get(element.parent);
 	}
 
+	/**
+	 * Remembers the last match for every depth of the document, so siblings with the same type resolve with a single
+	 * lookup instead of walking their ancestors again. Not thread safe, every handler has its own cache.
+	 */
+	final class Cache {
+		private Element[] parents = new Element[16];
+		private Node[] roots = new Node[16];
+		private String[] names = new String[16];
+
+		String get(Element element, int depth) {
+			Node root = root(element.getType());
+			if (root == null) {
+				return null;
+			}
 
-}
-
-
-class Node {
-	String elementName;
-	String newElementName;
-
-	List<Node> next = new ArrayList<>();
-
-	void add(Builder.XmlPath path, String renameTo) {
+			if (depth >= parents.length) {
+				int length = Math.max(depth + 1, parents.length * 2);
+				parents = Arrays.copyOf(parents, length);
+				roots = Arrays.copyOf(roots, length);
+				names = Arrays.copyOf(names, length);
+			}
 
+			if (parents[depth] == element.parent && roots[depth] == root) {
+				return names[depth];
+			}
 
-		if (path.getTail() == null) {
-			return;
-		}
+			String name = root.get(element.parent);
+			parents[depth] = element.parent;
+			roots[depth] = root;
+			names[depth] = name;
 
-		for (Node node : next) {
-			if (node.elementName.equals(path.getTail())) {
-				node.add(path.shorten(), renameTo);
-				return;
-			}
+			return name;
 		}
-		Node node = new Node();
+	}
 
-		next.add(node);
-		node.elementName = path.getTail();
+}
 
-		if (path.last()) {
-			node.newElementName = renameTo;
-		}
 
-		node.add(path.shorten(), renameTo);
+class Node {
+	final String elementName;
+	String newElementName;
 
+	final Map<String, Node> next = new HashMap<>(4);
 
+	Node(String elementName) {
+		this.elementName = elementName;
 	}
 
-	public String get(Element parent) {
-
+	Node child(String elementName) {
+		Node node = next.get(elementName);
+		if (node == null) {
+			node = new Node(elementName);
+			next.put(elementName, node);
+		}
+		return node;
+	}
 
-		for (Node node : next) {
-			if (node.elementName.equals(parent.getType())) {
-				if (parent.parent == null) {
-					return node.newElementName;
-				}
+	// follows the ancestors of an element for as long as they match
+	String get(Element parent) {
+		Node node = this;
 
-				return node.get(parent.parent);
+		while (parent != null) {
+			Node match = node.next.get(parent.getType());
+			if (match == null) {
+				break;
 			}
+			node = match;
+			parent = parent.parent;
 		}
 
-		if (newElementName != null) {
-			return newElementName;
-		}
-
-		return null;
+		return node.newElementName;
 	}
 }
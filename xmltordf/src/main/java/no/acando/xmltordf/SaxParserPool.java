@@ -0,0 +1,93 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The default tokenizer, secured and namespace aware SAX parsers for a converter. The factory is configured once and parsers are reset and
+ * reused between conversions.
+ */
+final class SaxParserPool implements XmlTokenizer {
+
+	private static final String INPUT_BUFFER_SIZE = "http://apache.org/xml/properties/input-buffer-size";
+
+	// bytes read by the parser at a time from inputs that are already in memory, instead of the default of 8 KB
+	private static final int MAPPED_READ_SIZE = 1 << 16;
+
+	private final ObjectPool<SAXParser> parsers = new ObjectPool<>();
+
+	private SAXParserFactory factory;
+
+	private SAXParser borrow() throws ParserConfigurationException, SAXException {
+		SAXParser saxParser = parsers.poll();
+		if (saxParser != null) {
+			return saxParser;
+		}
+
+		// SAXParserFactory is not thread safe
+		synchronized (this) {
+			if (factory == null) {
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setNamespaceAware(true);
+				Security.secureSaxParser(factory);
+				this.factory = factory;
+			}
+
+			return factory.newSAXParser();
+		}
+	}
+
+	@Override
+	public void parse(InputStream in, DefaultHandler handler) throws ParserConfigurationException, SAXException, IOException {
+		SAXParser saxParser = borrow();
+		configureFor(saxParser, in);
+		saxParser.parse(in, handler);
+		release(saxParser);
+	}
+
+	/**
+	 * Lets the parser read memory mapped inputs in larger blocks. The setting is undone when the parser is reset.
+	 */
+	private static void configureFor(SAXParser saxParser, InputStream in) {
+		if (!(CountingInputStream.unwrap(in) instanceof MappedInputStream)) {
+			return;
+		}
+
+		try {
+			saxParser.getXMLReader().setProperty(INPUT_BUFFER_SIZE, MAPPED_READ_SIZE);
+		} catch (SAXException e) {
+			// parsers that don't support the property read with their default size
+		}
+	}
+
+	/**
+	 * Returns a parser after a successful conversion. Parsers that failed are not reused.
+	 */
+	private void release(SAXParser saxParser) {
+		saxParser.reset();
+		parsers.release(saxParser);
+	}
+
+}
@@ -5,6 +5,7 @@ import org.xml.sax.SAXNotSupportedException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
 
 public class Security {
 
@@ -49,4 +50,11 @@ public class Security {
 
 	}
 
+	// the same protection for StAX, without DTD support there are no entities to expand
+	public static void secureStaxFactory(XMLInputFactory factory) {
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+	}
+
 }
@@ -0,0 +1,264 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drives a SAX handler from a StAX XMLStreamReader.
+ */
+final class StaxTokenizer implements XmlTokenizer {
+
+	private final XMLInputFactory factory;
+
+	StaxTokenizer() {
+		factory = XMLInputFactory.newFactory();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		Security.secureStaxFactory(factory);
+	}
+
+	@Override
+	public void parse(InputStream in, DefaultHandler handler) throws SAXException, IOException {
+		XMLStreamReader reader;
+		try {
+			// the factory is not documented as thread safe
+			synchronized (factory) {
+				reader = factory.createXMLStreamReader(in);
+			}
+		} catch (XMLStreamException e) {
+			throw fatalError(handler, e);
+		}
+
+		try {
+			new Events(reader, handler).run();
+		} catch (XMLStreamException e) {
+			throw fatalError(handler, e);
+		} finally {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				// nothing more to read
+			}
+			// the SAX parser closes the input when it is done as well
+			in.close();
+		}
+	}
+
+	// reports the error to the handler like the SAX parser does
+	private static SAXParseException fatalError(DefaultHandler handler, XMLStreamException e) throws SAXException {
+		Location location = e.getLocation();
+		SAXParseException exception = location != null
+			? new SAXParseException(e.getMessage(), location.getPublicId(), location.getSystemId(), location.getLineNumber(), location.getColumnNumber(), e)
+			: new SAXParseException(e.getMessage(), null, null, -1, -1, e);
+
+		handler.fatalError(exception);
+		return exception;
+	}
+
+	private static class Events {
+		private final XMLStreamReader reader;
+		private final DefaultHandler handler;
+		private final ReaderAttributes attributes;
+
+		// qualified names by prefix and local name, so prefixed names are only concatenated once
+		private final Map<String, Map<String, String>> qNames = new HashMap<>();
+
+		// SAX only reports text inside the root element
+		private int depth = 0;
+
+		Events(XMLStreamReader reader, DefaultHandler handler) {
+			this.reader = reader;
+			this.handler = handler;
+			this.attributes = new ReaderAttributes(reader);
+		}
+
+		void run() throws XMLStreamException, SAXException {
+			handler.startDocument();
+
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						depth++;
+						startElement();
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						endElement();
+						depth--;
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+						if (depth > 0) {
+							handler.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+						}
+						break;
+					case XMLStreamConstants.DTD:
+						// same as the secured SAX parser, which does not allow a doctype
+						throw new XMLStreamException("DOCTYPE is disallowed.", reader.getLocation());
+					default:
+						break;
+				}
+			}
+
+			handler.endDocument();
+		}
+
+		private void startElement() throws SAXException {
+			int namespaces = reader.getNamespaceCount();
+			for (int i = 0; i < namespaces; i++) {
+				handler.startPrefixMapping(nullToEmpty(reader.getNamespacePrefix(i)), nullToEmpty(reader.getNamespaceURI(i)));
+			}
+
+			handler.startElement(nullToEmpty(reader.getNamespaceURI()), reader.getLocalName(), qName(reader.getPrefix(), reader.getLocalName()), attributes);
+		}
+
+		private void endElement() throws SAXException {
+			handler.endElement(nullToEmpty(reader.getNamespaceURI()), reader.getLocalName(), qName(reader.getPrefix(), reader.getLocalName()));
+
+			int namespaces = reader.getNamespaceCount();
+			for (int i = 0; i < namespaces; i++) {
+				handler.endPrefixMapping(nullToEmpty(reader.getNamespacePrefix(i)));
+			}
+		}
+
+		private String qName(String prefix, String localName) {
+			if (prefix == null || prefix.isEmpty()) {
+				return localName;
+			}
+
+			Map<String, String> localNames = qNames.get(prefix);
+			if (localNames == null) {
+				localNames = new HashMap<>();
+				qNames.put(prefix, localNames);
+			}
+
+			String qName = localNames.get(localName);
+			if (qName == null) {
+				qName = prefix + ":" + localName;
+				localNames.put(localName, qName);
+			}
+			return qName;
+		}
+	}
+
+	/**
+	 * The attributes of the current element of the reader, without copying them.
+	 */
+	private static class ReaderAttributes implements Attributes {
+		private final XMLStreamReader reader;
+
+		ReaderAttributes(XMLStreamReader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public int getLength() {
+			return reader.getAttributeCount();
+		}
+
+		@Override
+		public String getURI(int index) {
+			return nullToEmpty(reader.getAttributeNamespace(index));
+		}
+
+		@Override
+		public String getLocalName(int index) {
+			return reader.getAttributeLocalName(index);
+		}
+
+		@Override
+		public String getQName(int index) {
+			String prefix = reader.getAttributePrefix(index);
+			String localName = reader.getAttributeLocalName(index);
+			return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+		}
+
+		@Override
+		public String getType(int index) {
+			return reader.getAttributeType(index);
+		}
+
+		@Override
+		public String getValue(int index) {
+			return reader.getAttributeValue(index);
+		}
+
+		@Override
+		public int getIndex(String uri, String localName) {
+			int length = getLength();
+			for (int i = 0; i < length; i++) {
+				if (getURI(i).equals(uri) && getLocalName(i).equals(localName)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public int getIndex(String qName) {
+			int length = getLength();
+			for (int i = 0; i < length; i++) {
+				if (getQName(i).equals(qName)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public String getType(String uri, String localName) {
+			int index = getIndex(uri, localName);
+			return index < 0 ? null : getType(index);
+		}
+
+		@Override
+		public String getType(String qName) {
+			int index = getIndex(qName);
+			return index < 0 ? null : getType(index);
+		}
+
+		@Override
+		public String getValue(String uri, String localName) {
+			int index = getIndex(uri, localName);
+			return index < 0 ? null : getValue(index);
+		}
+
+		@Override
+		public String getValue(String qName) {
+			int index = getIndex(qName);
+			return index < 0 ? null : getValue(index);
+		}
+	}
+
+	private static String nullToEmpty(String string) {
+		return string == null ? "" : string;
+	}
+
+}
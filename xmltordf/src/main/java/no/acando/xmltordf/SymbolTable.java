@@ -0,0 +1,191 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the resolved IRIs for element and attribute names during a conversion. A document usually only has a few
+ * hundred distinct names, so namespace resolution, renaming and string concatenation is done once per name instead
+ * of once per element. The predicates between parent and child types are cached the same way. Not thread safe, every
+ * handler has its own table.
+ */
+final class SymbolTable {
+
+	private final Builder.Advanced<?, ?, ? extends Builder.Advanced> builder;
+
+	private final Map<String, Map<String, ElementName>> elements = new HashMap<>();
+
+	private final Map<String, Map<String, Edge>> edges = new HashMap<>();
+
+	SymbolTable(Builder.Advanced<?, ?, ? extends Builder.Advanced> builder) {
+		this.builder = builder;
+	}
+
+	ElementName element(String namespace, String localName) {
+		Map<String, ElementName> localNames = elements.get(namespace);
+		if (localNames == null) {
+			localNames = new HashMap<>();
+			elements.put(namespace, localNames);
+		}
+
+		ElementName elementName = localNames.get(localName);
+		if (elementName == null) {
+			elementName = new ElementName(calculateNamespace(namespace), localName);
+			localNames.put(localName, elementName);
+		}
+
+		return elementName;
+	}
+
+	/**
+	 * The predicate between a parent and a child element and whether it is inverted, resolved once per pair of types.
+	 */
+	Edge edge(String parentType, String childType) {
+		if (!builder.hasInsertOrInvertPredicate()) {
+			return Edge.DEFAULT;
+		}
+
+		Map<String, Edge> children = edges.get(parentType);
+		if (children == null) {
+			children = new HashMap<>();
+			edges.put(parentType, children);
+		}
+
+		Edge edge = children.get(childType);
+		if (edge == null) {
+			String predicate = builder.getInsertPredicateBetweenOrDefaultPredicate(parentType, childType, XmlToRdfVocabulary.hasChild);
+			edge = new Edge(predicate, builder.checkInvertPredicate(predicate, parentType, childType));
+			children.put(childType, edge);
+		}
+
+		return edge;
+	}
+
+	final class ElementName {
+		final String namespace;
+		final String localName;
+		final String type;
+
+		// the new name from renameElement(String, String), null if the element is not renamed by name
+		final String renamedType;
+
+		// from renameElement(String, StringTransformTwoValue), called for every element since the function may not be pure
+		final StringTransformTwoValue renameFunction;
+
+		// the builder configuration for type and renamedType
+		final ElementRules rules;
+		final ElementRules renamedRules;
+
+		private final Map<String, Map<String, AttributeName>> attributes = new HashMap<>();
+
+		private ElementName(String namespace, String localName) {
+			this.namespace = namespace;
+			this.localName = localName;
+			this.type = (namespace + localName).intern();
+			this.renamedType = builder.renameElementMap != null ? builder.renameElementMap.get(type) : null;
+			this.renameFunction = renamedType == null && builder.renameElementFunctionMap != null ? builder.renameElementFunctionMap.get(type) : null;
+			this.rules = builder.getElementRules(type);
+			this.renamedRules = renamedType != null ? builder.getElementRules(renamedType) : null;
+		}
+
+		AttributeName attribute(String uriAttr, String nameAttr) {
+			Map<String, AttributeName> localNames = attributes.get(uriAttr);
+			if (localNames == null) {
+				localNames = new HashMap<>();
+				attributes.put(uriAttr, localNames);
+			}
+
+			AttributeName attributeName = localNames.get(nameAttr);
+			if (attributeName == null) {
+				attributeName = new AttributeName(calculateNamespaceForAttribute(namespace, uriAttr), nameAttr);
+				localNames.put(nameAttr, attributeName);
+			}
+
+			return attributeName;
+		}
+	}
+
+	static final class Edge {
+		static final Edge DEFAULT = new Edge(XmlToRdfVocabulary.hasChild, false);
+
+		final String predicate;
+		final boolean inverted;
+
+		// an inserted predicate keeps a child from being converted to a shallow element
+		final boolean insertedPredicate;
+
+		private Edge(String predicate, boolean inverted) {
+			this.predicate = predicate;
+			this.inverted = inverted;
+			this.insertedPredicate = predicate != XmlToRdfVocabulary.hasChild;
+		}
+	}
+
+	static final class AttributeName {
+		final String namespace;
+		final String localName;
+		final String predicate;
+
+		private AttributeName(String namespace, String localName) {
+			this.namespace = namespace;
+			this.localName = localName;
+			this.predicate = (namespace + localName).intern();
+		}
+	}
+
+	private String calculateNamespace(String uri) {
+		if (builder.overrideNamespace != null) {
+			return builder.overrideNamespace;
+		}
+
+		if (builder.autoAddSuffixToNamespace != null) {
+			if (uri != null && !uri.isEmpty() && !(uri.endsWith("/") || uri.endsWith("#"))) {
+				uri += builder.autoAddSuffixToNamespace;
+			}
+		}
+
+		if ((uri == null || uri.isEmpty()) && builder.baseNamespace != null && (builder.baseNamespaceAppliesTo == Builder.AppliesTo.justElements || builder.baseNamespaceAppliesTo == Builder.AppliesTo.bothElementsAndAttributes)) {
+			uri = builder.baseNamespace;
+		}
+
+		return uri;
+	}
+
+	private String calculateNamespaceForAttribute(String elementNamespace, String uriAttr) {
+		if (builder.overrideNamespace != null) {
+			uriAttr = builder.overrideNamespace;
+		}
+
+		if (builder.autoAddSuffixToNamespace != null) {
+			if (uriAttr != null && !uriAttr.isEmpty() && !(uriAttr.endsWith("/") || uriAttr.endsWith("#"))) {
+				uriAttr += builder.autoAddSuffixToNamespace;
+			}
+		}
+
+		if (uriAttr == null || uriAttr.isEmpty()) {
+			if (builder.autoAttributeNamespace && elementNamespace != null && !elementNamespace.isEmpty()) {
+				uriAttr = elementNamespace;
+			} else if (builder.baseNamespace != null && (builder.baseNamespaceAppliesTo == Builder.AppliesTo.justAttributes || builder.baseNamespaceAppliesTo == Builder.AppliesTo.bothElementsAndAttributes)) {
+				uriAttr = builder.baseNamespace;
+			}
+		}
+		return uriAttr;
+	}
+
+}
@@ -22,6 +22,11 @@ import java.util.Deque;
 import java.util.NoSuchElementException;
 
 
+/**
+ * @deprecated no longer used by XmlToRdfFast, which now keeps the triples it may still undo in a fixed window of
+ * node ids. Will be removed in a later release.
+ */
+@Deprecated
 public class UndoableBufferedPrintWriter {
 
 	private final PrintStream out;
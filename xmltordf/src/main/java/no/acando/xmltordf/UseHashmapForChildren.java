@@ -18,4 +18,8 @@ package no.acando.xmltordf;
 
 public interface UseHashmapForChildren {
 	void useHashmapForChildren();
+
+	default void useHashmapForChildren(String elementName) {
+		useHashmapForChildren();
+	}
 }
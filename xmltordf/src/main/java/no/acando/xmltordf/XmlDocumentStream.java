@@ -0,0 +1,284 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream of concatenated XML documents, e.g. messages on a socket, into one document at a time. The markup
+ * is followed just far enough to see where the root element ends, so the parser gets the end of the stream there and
+ * never reads into the next document. Whitespace and control characters such as NUL between documents are skipped.
+ * <p>
+ * Only encodings where markup is plain ASCII bytes are supported, e.g. UTF-8 and ISO-8859-1, not UTF-16.
+ */
+final class XmlDocumentStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] CDATA_START = {'[', 'C', 'D', 'A', 'T', 'A', '['};
+
+	private enum State {
+		text,
+		// after '<'
+		markup,
+		startTag,
+		endTag,
+		// after '<?', a processing instruction or the xml declaration
+		processingInstruction,
+		// after '<!'
+		declaration,
+		comment,
+		cdata,
+		// <!DOCTYPE, may have an internal subset in square brackets
+		doctype
+	}
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	private State state;
+	private int depth;
+	private boolean endOfDocument;
+
+	// quote character of the attribute or literal we are in, 0 outside of quotes
+	private int quote;
+	// the previous byte of a tag, to see '/>' and the end of '?>', '-->' and ']]>'
+	private int previous;
+	private int matched;
+	private int subsetDepth;
+
+	XmlDocumentStream(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Skips to the start of the next document, returns false at the end of the stream. The rest of the current
+	 * document is skipped if the parser did not read all of it.
+	 */
+	boolean nextDocument() throws IOException {
+		if (state != null) {
+			int scanned;
+			while ((scanned = read(buffer.length)) > 0) {
+				position += scanned;
+			}
+		}
+
+		state = State.text;
+		depth = 0;
+		endOfDocument = false;
+		quote = 0;
+		previous = 0;
+		matched = 0;
+		subsetDepth = 0;
+
+		while (true) {
+			if (position == limit && !fill()) {
+				return false;
+			}
+
+			if ((buffer[position] & 0xFF) > ' ') {
+				return true;
+			}
+			position++;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (read(1) <= 0) {
+			return -1;
+		}
+		return buffer[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		int scanned = read(len);
+		if (scanned <= 0) {
+			return -1;
+		}
+
+		System.arraycopy(buffer, position, b, off, scanned);
+		position += scanned;
+		return scanned;
+	}
+
+	/**
+	 * Bytes that can be read without blocking, from this document or the ones after it.
+	 */
+	@Override
+	public int available() throws IOException {
+		return limit - position + in.available();
+	}
+
+	@Override
+	public void close() {
+		// the parser closes its input at the end of every document, the stream of documents is closed by the caller
+	}
+
+	// scans up to len bytes at position that belong to the current document, returns how many
+	private int read(int len) throws IOException {
+		if (endOfDocument) {
+			return -1;
+		}
+		if (position == limit && !fill()) {
+			return -1;
+		}
+
+		int end = Math.min(limit, position + len);
+		for (int i = position; i < end; i++) {
+			if (scan(buffer[i] & 0xFF)) {
+				endOfDocument = true;
+				return i + 1 - position;
+			}
+		}
+		return end - position;
+	}
+
+	private boolean fill() throws IOException {
+		position = 0;
+		limit = 0;
+
+		int read;
+		do {
+			read = in.read(buffer, 0, buffer.length);
+		} while (read == 0);
+
+		if (read < 0) {
+			return false;
+		}
+		limit = read;
+		return true;
+	}
+
+	// returns true for the last byte of the document
+	private boolean scan(int b) {
+		switch (state) {
+			case text:
+				if (b == '<') {
+					state = State.markup;
+				}
+				return false;
+
+			case markup:
+				if (b == '/') {
+					state = State.endTag;
+				} else if (b == '?') {
+					state = State.processingInstruction;
+				} else if (b == '!') {
+					state = State.declaration;
+					matched = 0;
+				} else {
+					state = State.startTag;
+				}
+				previous = b;
+				return false;
+
+			case startTag:
+				if (quote != 0) {
+					if (b == quote) {
+						quote = 0;
+					}
+				} else if (b == '"' || b == '\'') {
+					quote = b;
+				} else if (b == '>') {
+					state = State.text;
+					if (previous == '/') {
+						// an empty root element is the whole document
+						return depth == 0;
+					}
+					depth++;
+					return false;
+				}
+				previous = b;
+				return false;
+
+			case endTag:
+				if (b == '>') {
+					state = State.text;
+					depth--;
+					return depth <= 0;
+				}
+				return false;
+
+			case processingInstruction:
+				if (b == '>' && previous == '?') {
+					state = State.text;
+				}
+				previous = b;
+				return false;
+
+			case declaration:
+				if (matched == 0 && b == '-') {
+					state = State.comment;
+					matched = 0;
+				} else if (matched < CDATA_START.length && b == CDATA_START[matched]) {
+					if (++matched == CDATA_START.length) {
+						state = State.cdata;
+						matched = 0;
+					}
+				} else {
+					state = State.doctype;
+					subsetDepth = 0;
+					return scan(b);
+				}
+				return false;
+
+			case comment:
+				// matched counts the dashes just before this byte
+				if (b == '>' && matched >= 2) {
+					state = State.text;
+				}
+				matched = b == '-' ? matched + 1 : 0;
+				return false;
+
+			case cdata:
+				if (b == '>' && matched >= 2) {
+					state = State.text;
+				}
+				matched = b == ']' ? matched + 1 : 0;
+				return false;
+
+			case doctype:
+				if (quote != 0) {
+					if (b == quote) {
+						quote = 0;
+					}
+				} else if (b == '"' || b == '\'') {
+					quote = b;
+				} else if (b == '[') {
+					subsetDepth++;
+				} else if (b == ']') {
+					subsetDepth--;
+				} else if (b == '>' && subsetDepth <= 0) {
+					state = State.text;
+				}
+				return false;
+
+			default:
+				throw new IllegalStateException("Unknown state: " + state);
+		}
+	}
+
+}
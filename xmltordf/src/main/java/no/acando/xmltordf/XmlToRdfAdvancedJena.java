@@ -18,35 +18,87 @@ package no.acando.xmltordf;
 
 import org.apache.jena.query.Dataset;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 
 public class XmlToRdfAdvancedJena {
 
 	Builder.AdvancedJena builder;
 
+	private final XmlTokenizer tokenizer;
+	private final ObjectPool<SymbolTable> symbolTables = new ObjectPool<>();
+
 	public XmlToRdfAdvancedJena(Builder.AdvancedJena builder) {
 		this.builder = builder;
+		this.tokenizer = builder.tokenizer != null ? builder.tokenizer : XmlTokenizer.sax();
 	}
 
-	public Dataset convertToDataset(InputStream in) throws ParserConfigurationException, SAXException, IOException {
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		factory.setNamespaceAware(true);
-		Security.secureSaxParser(factory);
+	/**
+	 * Converts a file by reading it through memory mapped regions instead of a stream.
+	 */
+	public Dataset convertToDataset(Path in) throws ParserConfigurationException, SAXException, IOException {
+		try (InputStream mapped = MappedInputStream.open(in)) {
+			return convertToDataset(mapped);
+		}
+	}
 
-		SAXParser saxParser = factory.newSAXParser();
+	/**
+	 * Converts the bytes between the position and the limit of the buffer, e.g. a MappedByteBuffer. The position of
+	 * the buffer is not changed.
+	 */
+	public Dataset convertToDataset(ByteBuffer in) throws ParserConfigurationException, SAXException, IOException {
+		return convertToDataset(MappedInputStream.of(in));
+	}
+
+	public Dataset convertToDataset(InputStream in) throws ParserConfigurationException, SAXException, IOException {
+		if (builder.dataset != null) {
+			convertToStreamRDF(in, new BatchLoaderJena(builder.dataset, builder.commitBatchSize));
+			return builder.dataset;
+		}
 
 		AdvancedSaxHandlerJena handler = new AdvancedSaxHandlerJena(builder);
 
-		saxParser.parse(in, handler);
+		parse(in, handler);
 		return handler.dataset;
 	}
 
+	/**
+	 * Converts the XML and sends every triple to the given sink as it is created, without building a dataset in
+	 * memory. The sink is called from a separate thread. start() and finish() are called on the sink, and prefixes
+	 * are sent before the triples that use them.
+	 *
+	 * @param in     the XML to convert
+	 * @param stream the sink that receives the triples, e.g. a RIOT writer or a TDB loader
+	 */
+	public void convertToStreamRDF(InputStream in, StreamRDF stream) throws ParserConfigurationException, SAXException, IOException {
+		AdvancedSaxHandlerJena handler = new AdvancedSaxHandlerJena(builder, stream);
+
+		parse(in, handler);
+	}
+
+	private void parse(InputStream in, AdvancedSaxHandlerJena handler) throws ParserConfigurationException, SAXException, IOException {
+		SymbolTable symbolTable = symbolTables.poll();
+		if (symbolTable != null) {
+			handler.symbolTable = symbolTable;
+		}
+
+		try {
+			handler.prescannedIds = CompositeIdPrescan.scan(tokenizer, in, builder, handler.symbolTable, true);
+			tokenizer.parse(CountingInputStream.wrap(in, builder.metrics), handler);
+		} catch (SAXException | IOException | RuntimeException e) {
+			handler.abort();
+			throw e;
+		} finally {
+			symbolTables.release(handler.symbolTable);
+		}
+	}
+
 	public PostProcessingJena convertForPostProcessing(InputStream inputStream) throws ParserConfigurationException, SAXException, IOException {
 		Model model = convertToDataset(inputStream).getDefaultModel();
 		inputStream.close();
@@ -17,36 +17,88 @@ limitations under the License.
 package no.acando.xmltordf;
 
 import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.rio.RDFHandler;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 
 
 public class XmlToRdfAdvancedRDF4J {
 
 	Builder.AdvancedRDF4J builder;
 
+	private final XmlTokenizer tokenizer;
+	private final ObjectPool<SymbolTable> symbolTables = new ObjectPool<>();
+
 	public XmlToRdfAdvancedRDF4J(Builder.AdvancedRDF4J builder) {
 		this.builder = builder;
+		this.tokenizer = builder.tokenizer != null ? builder.tokenizer : XmlTokenizer.sax();
 	}
 
-	public Repository convertToRepository(InputStream in) throws ParserConfigurationException, SAXException, IOException {
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		factory.setNamespaceAware(true);
-		Security.secureSaxParser(factory);
+	/**
+	 * Converts a file by reading it through memory mapped regions instead of a stream.
+	 */
+	public Repository convertToRepository(Path in) throws ParserConfigurationException, SAXException, IOException {
+		try (InputStream mapped = MappedInputStream.open(in)) {
+			return convertToRepository(mapped);
+		}
+	}
 
-		SAXParser saxParser = factory.newSAXParser();
+	/**
+	 * Converts the bytes between the position and the limit of the buffer, e.g. a MappedByteBuffer. The position of
+	 * the buffer is not changed.
+	 */
+	public Repository convertToRepository(ByteBuffer in) throws ParserConfigurationException, SAXException, IOException {
+		return convertToRepository(MappedInputStream.of(in));
+	}
+
+	public Repository convertToRepository(InputStream in) throws ParserConfigurationException, SAXException, IOException {
+		if (builder.repository != null) {
+			convertToHandler(in, new BatchLoaderRDF4J(builder.repository, builder.commitBatchSize));
+			return builder.repository;
+		}
 
 		AdvancedSaxHandlerRDF4J handler = new AdvancedSaxHandlerRDF4J(builder);
 
-		saxParser.parse(in, handler);
+		parse(in, handler);
 		return handler.repository;
 	}
 
+	/**
+	 * Converts the XML and sends every statement to the given handler as it is created, without building a
+	 * repository in memory. Statements are handed over in batches from the queue on a separate thread, which also
+	 * calls startRDF() and endRDF(). Namespaces are sent before the statements that use them.
+	 *
+	 * @param in         the XML to convert
+	 * @param rdfHandler the handler that receives the statements, e.g. a Rio writer
+	 */
+	public void convertToHandler(InputStream in, RDFHandler rdfHandler) throws ParserConfigurationException, SAXException, IOException {
+		AdvancedSaxHandlerRDF4J handler = new AdvancedSaxHandlerRDF4J(builder, rdfHandler);
+
+		parse(in, handler);
+	}
+
+	private void parse(InputStream in, AdvancedSaxHandlerRDF4J handler) throws ParserConfigurationException, SAXException, IOException {
+		SymbolTable symbolTable = symbolTables.poll();
+		if (symbolTable != null) {
+			handler.symbolTable = symbolTable;
+		}
+
+		try {
+			handler.prescannedIds = CompositeIdPrescan.scan(tokenizer, in, builder, handler.symbolTable, true);
+			tokenizer.parse(CountingInputStream.wrap(in, builder.metrics), handler);
+		} catch (SAXException | IOException | RuntimeException e) {
+			handler.abort();
+			throw e;
+		} finally {
+			symbolTables.release(handler.symbolTable);
+		}
+	}
+
 	public PostProcessingRDF4J convertForPostProcessing(InputStream inputStream) throws ParserConfigurationException, SAXException, IOException {
 		Repository repository = convertToRepository(inputStream);
 		inputStream.close();
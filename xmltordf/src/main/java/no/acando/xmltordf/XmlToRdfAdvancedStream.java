@@ -19,34 +19,178 @@ package no.acando.xmltordf;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class XmlToRdfAdvancedStream {
 
 	Builder.AdvancedStream builder;
 
+	private final XmlTokenizer tokenizer;
+	private final ObjectPool<SymbolTable> symbolTables = new ObjectPool<>();
+	private final ObjectPool<byte[]> buffers = new ObjectPool<>();
+
 	public XmlToRdfAdvancedStream(Builder.AdvancedStream builder) {
 		this.builder = builder;
+		this.tokenizer = builder.tokenizer != null ? builder.tokenizer : XmlTokenizer.sax();
 	}
 
-	public void convertToStream(InputStream in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		factory.setNamespaceAware(true);
-
-		Security.secureSaxParser(factory);
+	/**
+	 * Converts a file by reading it through memory mapped regions instead of a stream.
+	 */
+	public void convertToStream(Path in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
+		try (InputStream mapped = MappedInputStream.open(in)) {
+			convertToStream(mapped, out);
+		}
+	}
 
+	/**
+	 * Converts the bytes between the position and the limit of the buffer, e.g. a MappedByteBuffer. The position of
+	 * the buffer is not changed.
+	 */
+	public void convertToStream(ByteBuffer in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
+		convertToStream(MappedInputStream.of(in), out);
+	}
 
-		SAXParser saxParser = factory.newSAXParser();
+	public void convertToStream(InputStream in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
+		byte[] buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = NTriplesWriter.newBuffer();
+		}
+
+		in = GzipInput.decompress(in);
+
+		// closed by the handler at the end of the document
+		Output output = new Output(out);
+
+		AdvancedSaxHandlerString handler = new AdvancedSaxHandlerString(output.stream, builder, buffer);
+
+		SymbolTable symbolTable = symbolTables.poll();
+		if (symbolTable != null) {
+			handler.symbolTable = symbolTable;
+		}
+
+		try {
+			// blank nodes in records are labelled by the workers, so the first pass can not know them
+			handler.prescannedIds = CompositeIdPrescan.scan(tokenizer, in, builder, handler.symbolTable, builder.parallelThreads <= 1);
+
+			if (builder.parallelThreads > 1) {
+				ExecutorService executor = Executors.newFixedThreadPool(builder.parallelThreads);
+				try {
+					tokenizer.parse(CountingInputStream.wrap(in, builder.metrics), new ParallelSaxHandler(handler, builder, executor));
+				} finally {
+					executor.shutdownNow();
+				}
+			} else {
+				tokenizer.parse(CountingInputStream.wrap(in, builder.metrics), handler);
+			}
+		} catch (SAXException | IOException | RuntimeException e) {
+			output.abort();
+			throw e;
+		} finally {
+			handler.closeDelayedElementSpill();
+			symbolTables.release(handler.symbolTable);
+			buffers.release(buffer);
+		}
 
-		AdvancedSaxHandlerString handler = new AdvancedSaxHandlerString(out, builder);
+	}
 
-		saxParser.parse(in, handler);
+	/**
+	 * Converts a stream of XML documents into one output, e.g. messages read from a socket or stdin. The documents
+	 * may be concatenated as they are or separated by whitespace or control characters such as NUL. The same handler
+	 * converts every document, and the blank nodes of each document are kept apart with their own prefix. The output
+	 * is flushed whenever the converter would have to wait for more input, and closed at the end of the input.
+	 *
+	 * @return the number of documents converted
+	 */
+	public long convertDocumentsToStream(InputStream in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
+		byte[] buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = NTriplesWriter.newBuffer();
+		}
+
+		in = GzipInput.decompress(in);
+
+		Output output = new Output(out);
+
+		AdvancedSaxHandlerString handler = new AdvancedSaxHandlerString(output.stream, builder, buffer);
+		handler.closeAtEndDocument = false;
+
+		SymbolTable symbolTable = symbolTables.poll();
+		if (symbolTable != null) {
+			handler.symbolTable = symbolTable;
+		}
+
+		XmlDocumentStream documents = new XmlDocumentStream(CountingInputStream.wrap(in, builder.metrics));
+		ExecutorService executor = builder.parallelThreads > 1 ? Executors.newFixedThreadPool(builder.parallelThreads) : null;
+		long count = 0;
+
+		try {
+			while (documents.nextDocument()) {
+				handler.startNextDocument(Common.BLANK_NODE_PREFIX + "d" + count + "_");
+
+				if (executor != null) {
+					tokenizer.parse(documents, new ParallelSaxHandler(handler, builder, executor));
+				} else {
+					tokenizer.parse(documents, handler);
+				}
+				count++;
+
+				if (documents.available() == 0) {
+					handler.flush();
+				}
+			}
+
+			handler.close();
+		} catch (SAXException | IOException | RuntimeException e) {
+			output.abort();
+			throw e;
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			handler.closeDelayedElementSpill();
+			symbolTables.release(handler.symbolTable);
+			buffers.release(buffer);
+		}
+
+		return count;
+	}
 
+	// the output stream with the optional gzip and asynchronous stages in front of it
+	private class Output {
+		final ParallelGzipOutputStream gzip;
+		final AsyncOutputStream async;
+		final OutputStream stream;
+
+		Output(OutputStream out) throws IOException {
+			gzip = builder.gzipOutputThreads > 0 ? new ParallelGzipOutputStream(out, builder.gzipOutputThreads) : null;
+			if (gzip != null) {
+				out = gzip;
+			}
+
+			async = builder.asyncOutputBuffers > 0 ? new AsyncOutputStream(out, builder.asyncOutputBuffers) : null;
+			if (async != null) {
+				out = async;
+			}
+
+			stream = out;
+		}
+
+		void abort() {
+			if (async != null) {
+				async.abort();
+			}
+			if (gzip != null) {
+				gzip.abort();
+			}
+		}
 	}
 
 
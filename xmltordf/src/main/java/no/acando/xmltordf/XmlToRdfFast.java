@@ -19,34 +19,67 @@ package no.acando.xmltordf;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 
 
 public class XmlToRdfFast {
 
 	Builder.Fast builder;
 
+	private final XmlTokenizer tokenizer;
+	private final ObjectPool<byte[]> buffers = new ObjectPool<>();
+
 	public XmlToRdfFast(Builder.Fast builder) {
 		this.builder = builder;
+		this.tokenizer = builder.tokenizer != null ? builder.tokenizer : XmlTokenizer.sax();
 	}
 
-	public void convertToStream(InputStream in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		factory.setNamespaceAware(true);
-
-
-		Security.secureSaxParser(factory);
-
-
-		SAXParser saxParser = factory.newSAXParser();
+	/**
+	 * Converts a file by reading it through memory mapped regions instead of a stream.
+	 */
+	public void convertToStream(Path in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
+		try (InputStream mapped = MappedInputStream.open(in)) {
+			convertToStream(mapped, out);
+		}
+	}
 
-		FastSaxHandler handler = new FastSaxHandler(out, builder);
+	/**
+	 * Converts the bytes between the position and the limit of the buffer, e.g. a MappedByteBuffer. The position of
+	 * the buffer is not changed.
+	 */
+	public void convertToStream(ByteBuffer in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
+		convertToStream(MappedInputStream.of(in), out);
+	}
 
-		saxParser.parse(in, handler);
+	public void convertToStream(InputStream in, OutputStream out) throws ParserConfigurationException, SAXException, IOException {
+		byte[] buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = NTriplesWriter.newBuffer();
+		}
+
+		in = GzipInput.decompress(in);
+
+		ParallelGzipOutputStream gzip = builder.gzipOutputThreads > 0 ? new ParallelGzipOutputStream(out, builder.gzipOutputThreads) : null;
+
+		FastSaxHandler handler = new FastSaxHandler(gzip != null ? gzip : out, builder, buffer);
+
+		try {
+			tokenizer.parse(CountingInputStream.wrap(in, builder.metrics), handler);
+			if (gzip != null) {
+				gzip.finish();
+			}
+		} catch (SAXException | IOException | RuntimeException e) {
+			if (gzip != null) {
+				gzip.abort();
+			}
+			throw e;
+		} finally {
+			buffers.release(buffer);
+		}
 
 	}
 
@@ -0,0 +1,50 @@
+/*
+Copyright 2016 ACANDO AS
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package no.acando.xmltordf;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the XML and drives the handlers of the converters through the SAX callbacks. The converters use the JDK SAX
+ * parser unless another tokenizer is set with tokenizer(...) on the builder. Implementations have to be safe for
+ * concurrent conversions, and have to report the element and attribute names with namespaces resolved.
+ */
+public interface XmlTokenizer {
+
+	/**
+	 * The JDK SAX parser, secured against external entities and DTDs.
+	 */
+	static XmlTokenizer sax() {
+		return new SaxParserPool();
+	}
+
+	/**
+	 * The StAX parser found by XMLInputFactory, secured against external entities and DTDs. Text is passed on as a
+	 * slice of the parser's buffer, and a single Attributes view over the parser is reused for every element.
+	 */
+	static XmlTokenizer stax() {
+		return new StaxTokenizer();
+	}
+
+	void parse(InputStream in, DefaultHandler handler) throws ParserConfigurationException, SAXException, IOException;
+
+}
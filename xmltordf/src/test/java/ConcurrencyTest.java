@@ -15,8 +15,12 @@ limitations under the License.
  */
 
 import no.acando.xmltordf.Builder;
+import no.acando.xmltordf.CustomBlockingQueue;
+import no.acando.xmltordf.WaitStrategy;
 import no.acando.xmltordf.XmlToRdfAdvancedJena;
 import no.acando.xmltordf.XmlToRdfAdvancedRDF4J;
+import no.acando.xmltordf.XmlToRdfAdvancedStream;
+import no.acando.xmltordf.XmlToRdfFast;
 import org.apache.jena.query.Dataset;
 import org.eclipse.rdf4j.repository.Repository;
 import org.junit.Test;
@@ -24,14 +28,21 @@ import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ConcurrencyTest {
 	private List<Dataset> datasets = new ArrayList<>();
@@ -107,6 +118,78 @@ public class ConcurrencyTest {
 
 	}
 
+	@Test
+	public void testReusedConverters() throws Exception {
+
+		byte[] xml = Files.readAllBytes(Paths.get("testFiles/parallel/input.xml"));
+
+		XmlToRdfAdvancedStream stream = Builder.getAdvancedBuilderStream().addIndex(true).build();
+		XmlToRdfFast fast = Builder.getFastBuilder().build();
+
+		ByteArrayOutputStream expectedStream = new ByteArrayOutputStream();
+		stream.convertToStream(new ByteArrayInputStream(xml), expectedStream);
+		ByteArrayOutputStream expectedFast = new ByteArrayOutputStream();
+		fast.convertToStream(new ByteArrayInputStream(xml), expectedFast);
+
+		ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+		List<Future<Boolean>> results = new ArrayList<>();
+
+		for (int i = 0; i < NUMBER_OF_THREADS * 50; i++) {
+			results.add(executor.submit(() -> {
+				ByteArrayOutputStream actualStream = new ByteArrayOutputStream();
+				stream.convertToStream(new ByteArrayInputStream(xml), actualStream);
+				ByteArrayOutputStream actualFast = new ByteArrayOutputStream();
+				fast.convertToStream(new ByteArrayInputStream(xml), actualFast);
+
+				return Arrays.equals(expectedStream.toByteArray(), actualStream.toByteArray())
+					&& Arrays.equals(expectedFast.toByteArray(), actualFast.toByteArray());
+			}));
+		}
+
+		executor.shutdown();
+
+		for (Future<Boolean> result : results) {
+			assertTrue("Output differs when converters are used from several threads", result.get());
+		}
+
+	}
+
+	@Test
+	public void testCustomBlockingQueue() throws InterruptedException {
+
+		final int elements = 1000000;
+
+		for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+			CustomBlockingQueue<Integer> queue = new CustomBlockingQueue<>(100, waitStrategy);
+
+			Thread producer = new Thread(() -> {
+				try {
+					for (int i = 0; i < elements; i++) {
+						queue.put(i);
+					}
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			});
+			producer.start();
+
+			List<Integer> batch = new ArrayList<>();
+			int expected = 0;
+			while (expected < elements) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				for (Integer integer : batch) {
+					assertEquals("Wrong order with wait strategy " + waitStrategy, expected++, (int) integer);
+				}
+				batch.clear();
+			}
+
+			producer.join();
+			assertTrue(queue.isEmpty());
+		}
+
+	}
+
 	synchronized private void addRepository(Repository repo) {
 		repositories.add(repo);
 	}
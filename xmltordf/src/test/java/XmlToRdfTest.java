@@ -15,18 +15,26 @@ limitations under the License.
  */
 
 import no.acando.xmltordf.Builder;
+import no.acando.xmltordf.ConversionMetrics;
 import no.acando.xmltordf.Element;
 import no.acando.xmltordf.SimpleTypePolicy;
 import no.acando.xmltordf.XmlToRdfAdvancedJena;
 import no.acando.xmltordf.XmlToRdfAdvancedRDF4J;
 import no.acando.xmltordf.XmlToRdfAdvancedStream;
 import no.acando.xmltordf.XmlToRdfFast;
+import no.acando.xmltordf.XmlTokenizer;
 import no.acando.xmltordf.XmlToRdfVocabulary;
 import org.apache.jena.datatypes.xsd.XSDDatatype;
 import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ReadWrite;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWrapper;
 import org.apache.jena.util.FileManager;
 import org.eclipse.rdf4j.model.Namespace;
 import org.eclipse.rdf4j.model.Statement;
@@ -36,9 +44,11 @@ import org.eclipse.rdf4j.model.vocabulary.XMLSchema;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.RepositoryResult;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFWriter;
 import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
@@ -47,15 +57,33 @@ import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 
 public class XmlToRdfTest {
 
@@ -135,6 +163,23 @@ public class XmlToRdfTest {
 
 	}
 
+	@Test
+	public void renameOnPathInAnyOrder() throws Exception {
+		testAdvancedJena(
+			Builder.getAdvancedBuilderJena()
+				.renameElement(Builder.createPath("http://example.org/a", "http://example.org/a", "http://example.org/a", "http://example.org/b"), "http://example.org/NONE")
+				.renameElement(Builder.createPath("http://example.org/a", "http://example.org/a", "http://example.org/b"), "http://example.org/LONG")
+				.renameElement(Builder.createPath("http://example.org/a", "http://example.org/b"), "http://example.org/SHORT")
+				.build());
+
+		testAdvancedStream(Builder.getAdvancedBuilderStream()
+			.renameElement(Builder.createPath("http://example.org/a", "http://example.org/a", "http://example.org/a", "http://example.org/b"), "http://example.org/NONE")
+			.renameElement(Builder.createPath("http://example.org/a", "http://example.org/a", "http://example.org/b"), "http://example.org/LONG")
+			.renameElement(Builder.createPath("http://example.org/a", "http://example.org/b"), "http://example.org/SHORT")
+			.build());
+
+	}
+
 	@Test
 	public void simpleWithAttrs() throws Exception {
 
@@ -916,6 +961,26 @@ public class XmlToRdfTest {
 
 	}
 
+	@Test
+	public void autoTypedLiteralsEdgeCases() throws Exception {
+
+		testAdvancedStream(Builder.getAdvancedBuilderStream()
+			.autoTypeLiterals(true)
+
+			.build());
+
+		testAdvancedRDF4J(Builder.getAdvancedBuilderRDF4J()
+			.autoTypeLiterals(true)
+
+			.build());
+
+		testAdvancedJena(Builder.getAdvancedBuilderJena()
+			.autoTypeLiterals(true)
+
+			.build());
+
+	}
+
 	@Test
 	public void longLiteral() throws ParserConfigurationException, SAXException, IOException {
 
@@ -1353,6 +1418,41 @@ public class XmlToRdfTest {
 
 	}
 
+	@Test
+	public void spillDelayedElements() throws Exception {
+
+		testAdvancedStream(Builder.getAdvancedBuilderStream()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromElement("http://example.org/name")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) ->
+				"http://data.org/" + elementMap.get("http://example.org/num") + elementMap.get("http://example.org/name") + attributeMap.get("http://example.org/localId"))
+			.spillDelayedElements(1)
+			.build());
+
+		testAdvancedJena(Builder.getAdvancedBuilderJena()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromElement("http://example.org/name")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) ->
+				"http://data.org/" + elementMap.get("http://example.org/num") + elementMap.get("http://example.org/name") + attributeMap.get("http://example.org/localId"))
+			.spillDelayedElements(1)
+			.build());
+
+		testAdvancedRDF4J(Builder.getAdvancedBuilderRDF4J()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromElement("http://example.org/name")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) ->
+				"http://data.org/" + elementMap.get("http://example.org/num") + elementMap.get("http://example.org/name") + attributeMap.get("http://example.org/localId"))
+			.spillDelayedElements(1)
+			.build());
+
+	}
+
 	@Test
 	public void compositeIdWithDelayedOutput() throws Exception {
 
@@ -1474,6 +1574,373 @@ public class XmlToRdfTest {
 
 	}
 
+	@Test
+	public void compositeIdPrescan() throws Exception {
+
+		testAdvancedStream(Builder.getAdvancedBuilderStream()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) -> "http://data.org/" + elementMap.get("http://example.org/num") + attributeMap.get("http://example.org/localId"))
+
+			.compositeId("http://example.org/C")
+			.fromElement("http://example.org/key")
+			.parentId()
+			.mappedTo((elementMap, attributeMap) -> elementMap.get(XmlToRdfVocabulary.parentId) + "/" + elementMap.get("http://example.org/key"))
+
+			.compositeIdPrescan(true)
+			.build());
+
+		testAdvancedJena(Builder.getAdvancedBuilderJena()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) -> "http://data.org/" + elementMap.get("http://example.org/num") + attributeMap.get("http://example.org/localId"))
+
+			.compositeId("http://example.org/C")
+			.fromElement("http://example.org/key")
+			.parentId()
+			.mappedTo((elementMap, attributeMap) -> elementMap.get(XmlToRdfVocabulary.parentId) + "/" + elementMap.get("http://example.org/key"))
+
+			.compositeIdPrescan(true)
+			.build());
+
+		testAdvancedRDF4J(Builder.getAdvancedBuilderRDF4J()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) -> "http://data.org/" + elementMap.get("http://example.org/num") + attributeMap.get("http://example.org/localId"))
+
+			.compositeId("http://example.org/C")
+			.fromElement("http://example.org/key")
+			.parentId()
+			.mappedTo((elementMap, attributeMap) -> elementMap.get(XmlToRdfVocabulary.parentId) + "/" + elementMap.get("http://example.org/key"))
+
+			.compositeIdPrescan(true)
+			.build());
+
+	}
+
+	@Test
+	public void gzipInputAndOutput() throws Exception {
+
+		// large enough for the output to span many compressed blocks
+		StringBuilder xml = new StringBuilder("<people xmlns=\"http://example.org/\">");
+		for (int i = 0; i < 20000; i++) {
+			xml.append("<person id=\"").append(i).append("\"><name>Person ").append(i).append("</name><age>").append(i % 100).append("</age></person>");
+		}
+		xml.append("</people>");
+		byte[] document = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write(document);
+		}
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Builder.getFastBuilder().build().convertToStream(new ByteArrayInputStream(document), expected);
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		Builder.getFastBuilder().gzipOutput(4).build().convertToStream(new ByteArrayInputStream(compressed.toByteArray()), actual);
+
+		assertEquals(expected.toString("UTF-8"), gunzip(actual.toByteArray()));
+
+		expected = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream().build().convertToStream(new ByteArrayInputStream(document), expected);
+
+		actual = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream().gzipOutput(4).build().convertToStream(new ByteArrayInputStream(compressed.toByteArray()), actual);
+
+		assertEquals(expected.toString("UTF-8"), gunzip(actual.toByteArray()));
+
+	}
+
+	@Test
+	public void fastEmptyRootElement() throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Builder.getFastBuilder().build().convertToStream(new ByteArrayInputStream("<a xmlns=\"http://example.org/\"/>".getBytes(StandardCharsets.UTF_8)), out);
+
+		assertEquals("_:index0 <" + RDF.TYPE + "> <http://example.org/a>.\n", out.toString("UTF-8"));
+
+	}
+
+	@Test(timeout = 60000)
+	public void asyncOutput() throws Exception {
+
+		// large enough for the output to fill several buffers
+		StringBuilder xml = new StringBuilder("<people xmlns=\"http://example.org/\">");
+		for (int i = 0; i < 50000; i++) {
+			xml.append("<person id=\"").append(i).append("\"><name>Person ").append(i).append("</name><age>").append(i % 100).append("</age></person>");
+		}
+		xml.append("</people>");
+		byte[] document = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream().build().convertToStream(new ByteArrayInputStream(document), expected);
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream().asyncOutput(2).build().convertToStream(new ByteArrayInputStream(document), actual);
+
+		assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+
+		actual = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream().asyncOutput(3).gzipOutput(2).build().convertToStream(new ByteArrayInputStream(document), actual);
+
+		assertEquals(expected.toString("UTF-8"), gunzip(actual.toByteArray()));
+
+		OutputStream failing = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("disk full");
+			}
+		};
+
+		try {
+			Builder.getAdvancedBuilderStream().asyncOutput(2).build().convertToStream(new ByteArrayInputStream(document), failing);
+			fail("The write error should be reported");
+		} catch (IOException | UncheckedIOException e) {
+			// expected
+		}
+
+		OutputStream failingRuntime = new OutputStream() {
+			@Override
+			public void write(int b) {
+				throw new IllegalStateException("broken");
+			}
+		};
+
+		try {
+			Builder.getAdvancedBuilderStream().asyncOutput(2).build().convertToStream(new ByteArrayInputStream(document), failingRuntime);
+			fail("The write error should be reported");
+		} catch (IOException | UncheckedIOException e) {
+			// expected
+		}
+
+		OutputStream failingClose = new ByteArrayOutputStream() {
+			@Override
+			public void close() throws IOException {
+				throw new IOException("close failed");
+			}
+		};
+
+		try {
+			Builder.getAdvancedBuilderStream().asyncOutput(2).build().convertToStream(new ByteArrayInputStream(document), failingClose);
+			fail("The close error should be reported");
+		} catch (IOException | UncheckedIOException e) {
+			// expected
+		}
+
+	}
+
+	@Test
+	public void documentStream() throws Exception {
+
+		String[] documents = {
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<message xmlns=\"http://example.org/\" id=\"1\"><text>a &gt; b</text><empty/></message>",
+			"<!-- </message> --><message xmlns=\"http://example.org/\" note=\"1 > 0 /> x\"><text><![CDATA[</message> ]]]></text></message>",
+			"<message xmlns=\"http://example.org/\"/>",
+			"<?xml version=\"1.0\"?><message xmlns=\"http://example.org/\"><message><text>nested</text></message><?pi > ?></message>",
+			"<message xmlns=\"http://example.org/\" id=\"1\"><text>same as the first</text></message>"
+		};
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Model expected = ModelFactory.createDefaultModel();
+
+		for (int i = 0; i < documents.length; i++) {
+			byte[] bytes = documents[i].getBytes(StandardCharsets.UTF_8);
+
+			// messages are concatenated as they are, or separated by a newline or a NUL byte
+			stream.write(bytes);
+			if (i % 3 == 1) {
+				stream.write('\n');
+			} else if (i % 3 == 2) {
+				stream.write(0);
+			}
+
+			// every document has its own blank nodes
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Builder.getAdvancedBuilderStream().build().convertToStream(new ByteArrayInputStream(bytes), out);
+			expected.read(new ByteArrayInputStream(out.toByteArray()), "", "N-TRIPLES");
+		}
+
+		for (XmlToRdfAdvancedStream converter : new XmlToRdfAdvancedStream[]{
+			Builder.getAdvancedBuilderStream().build(),
+			Builder.getAdvancedBuilderStream().tokenizer(XmlTokenizer.stax()).build()}) {
+
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			long count = converter.convertDocumentsToStream(new ByteArrayInputStream(stream.toByteArray()), actual);
+
+			assertEquals(documents.length, count);
+
+			Model actualModel = ModelFactory.createDefaultModel().read(new ByteArrayInputStream(actual.toByteArray()), "", "N-TRIPLES");
+			assertTrue(expected.isIsomorphicWith(actualModel));
+		}
+
+	}
+
+	@Test(timeout = 60000)
+	public void documentStreamGzipFlush() throws Exception {
+
+		int documentCount = 5;
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		List<String> outputBeforeDocument = new ArrayList<>();
+
+		// hands out one document at a time, like messages arriving on a socket, and records the output seen so far
+		InputStream messages = new InputStream() {
+			int document = -1;
+			byte[] current = new byte[0];
+			int position = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (position == current.length) {
+					if (document + 1 == documentCount) {
+						return -1;
+					}
+					document++;
+					outputBeforeDocument.add(gunzipAvailable(actual.toByteArray()));
+					current = ("<message xmlns=\"http://example.org/\"><text>document " + document + "</text></message>").getBytes(StandardCharsets.UTF_8);
+					position = 0;
+				}
+				int length = Math.min(len, current.length - position);
+				System.arraycopy(current, position, b, off, length);
+				position += length;
+				return length;
+			}
+
+			@Override
+			public int available() {
+				return current.length - position;
+			}
+		};
+
+		long count = Builder.getAdvancedBuilderStream().gzipOutput(2).build().convertDocumentsToStream(messages, actual);
+
+		assertEquals(documentCount, count);
+		for (int i = 1; i < documentCount; i++) {
+			assertTrue(outputBeforeDocument.get(i).contains("document " + (i - 1)));
+		}
+		assertTrue(gunzip(actual.toByteArray()).contains("document " + (documentCount - 1)));
+
+	}
+
+	// decompresses as much of a gzip stream as has been written so far
+	private static String gunzipAvailable(byte[] compressed) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+		} catch (EOFException e) {
+			// the rest has not been written yet
+		}
+		return out.toString("UTF-8");
+	}
+
+	private static String gunzip(byte[] compressed) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+		}
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void staxTokenizer() throws Exception {
+
+		XmlToRdfFast saxFast = Builder.getFastBuilder().build();
+		XmlToRdfFast staxFast = Builder.getFastBuilder().tokenizer(XmlTokenizer.stax()).build();
+		XmlToRdfAdvancedStream saxStream = Builder.getAdvancedBuilderStream().build();
+		XmlToRdfAdvancedStream staxStream = Builder.getAdvancedBuilderStream().tokenizer(XmlTokenizer.stax()).build();
+
+		File[] directories = new File("testFiles").listFiles(File::isDirectory);
+		for (File directory : directories) {
+			File xml = new File(directory, "input.xml");
+			if (!xml.exists() || xml.length() == 0) {
+				continue;
+			}
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			try {
+				saxFast.convertToStream(new FileInputStream(xml), expected);
+			} catch (SAXException e) {
+				// inputs that are not well formed, or not allowed by the secured parser
+				continue;
+			}
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			staxFast.convertToStream(new FileInputStream(xml), actual);
+			checkIsomorphic("Not isomorphic for fast method with StAX: " + directory.getName(), turtleToModel(expected), turtleToModel(actual));
+
+			expected = new ByteArrayOutputStream();
+			saxStream.convertToStream(new FileInputStream(xml), expected);
+			actual = new ByteArrayOutputStream();
+			staxStream.convertToStream(new FileInputStream(xml), actual);
+			checkIsomorphic("Not isomorphic for object method with StAX: " + directory.getName(), turtleToModel(expected), turtleToModel(actual));
+		}
+
+	}
+
+	@Test
+	public void mappedInput() throws Exception {
+
+		testMappedInput(
+			Builder.getAdvancedBuilderStream()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) -> "http://data.org/" + elementMap.get("http://example.org/num") + attributeMap.get("http://example.org/localId"))
+
+			.compositeId("http://example.org/C")
+			.fromElement("http://example.org/key")
+			.parentId()
+			.mappedTo((elementMap, attributeMap) -> elementMap.get(XmlToRdfVocabulary.parentId) + "/" + elementMap.get("http://example.org/key"))
+
+			.compositeIdPrescan(true)
+			.build(),
+
+			Builder.getAdvancedBuilderJena()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) -> "http://data.org/" + elementMap.get("http://example.org/num") + attributeMap.get("http://example.org/localId"))
+
+			.compositeId("http://example.org/C")
+			.fromElement("http://example.org/key")
+			.parentId()
+			.mappedTo((elementMap, attributeMap) -> elementMap.get(XmlToRdfVocabulary.parentId) + "/" + elementMap.get("http://example.org/key"))
+
+			.compositeIdPrescan(true)
+			.build(),
+
+			Builder.getAdvancedBuilderRDF4J()
+			.compositeId("http://example.org/B")
+			.fromElement("http://example.org/num")
+			.fromAttribute("http://example.org/localId")
+			.mappedTo((elementMap, attributeMap) -> "http://data.org/" + elementMap.get("http://example.org/num") + attributeMap.get("http://example.org/localId"))
+
+			.compositeId("http://example.org/C")
+			.fromElement("http://example.org/key")
+			.parentId()
+			.mappedTo((elementMap, attributeMap) -> elementMap.get(XmlToRdfVocabulary.parentId) + "/" + elementMap.get("http://example.org/key"))
+
+			.compositeIdPrescan(true)
+			.build());
+
+	}
+
 	@Test
 	public void compositeIdBasedOnParentsIdWithRename() throws Exception {
 
@@ -1564,6 +2031,301 @@ public class XmlToRdfTest {
 
 	}
 
+	@Test
+	public void parallel() throws Exception {
+
+		testAdvancedStream(Builder.getAdvancedBuilderStream()
+			.addIndex(true)
+			.parallel(4)
+			.build());
+
+		testAdvancedStream(Builder.getAdvancedBuilderStream()
+			.addIndex(true)
+			.parallel(4, "http://example.org/sub")
+			.build());
+
+	}
+
+	@Test
+	public void renameElementFunctionCalledForEveryElement() throws Exception {
+
+		int[] counter = {0};
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream()
+			.renameElement("http://example.org/item", (namespace, name) -> namespace + name + (++counter[0]))
+			.build()
+			.convertToStream(new ByteArrayInputStream("<list xmlns=\"http://example.org/\"><item a=\"1\"/><item a=\"2\"/><item a=\"3\"/></list>".getBytes(StandardCharsets.UTF_8)), out);
+
+		String output = out.toString("UTF-8");
+		assertEquals(3, counter[0]);
+		assertTrue(output.contains("<http://example.org/item1>"));
+		assertTrue(output.contains("<http://example.org/item2>"));
+		assertTrue(output.contains("<http://example.org/item3>"));
+
+		// the composite id pre-scan would read the input twice, it is skipped so the function is still called once
+		counter[0] = 0;
+		Builder.getAdvancedBuilderStream()
+			.renameElement("http://example.org/item", (namespace, name) -> namespace + name + (++counter[0]))
+			.compositeId("http://example.org/list")
+			.fromElement("http://example.org/name")
+			.mappedTo((elementMap, attributeMap) -> "http://data.org/" + elementMap.get("http://example.org/name"))
+			.compositeIdPrescan(true)
+			.build()
+			.convertToStream(new ByteArrayInputStream("<list xmlns=\"http://example.org/\"><item a=\"1\"/><item a=\"2\"/><item a=\"3\"/><name>x</name></list>".getBytes(StandardCharsets.UTF_8)), new ByteArrayOutputStream());
+
+		assertEquals(3, counter[0]);
+
+	}
+
+	@Test
+	public void complexTransformReadsUris() throws Exception {
+
+		List<String> uris = new ArrayList<>();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream()
+			.addComplexElementTransformAtStartOfElement("http://example.org/item", element -> uris.add(element.parent.uri))
+			.addComplexElementTransformAtEndOfElement("http://example.org/item", element -> {
+				uris.add(element.parent.uri);
+				uris.add(((Element) element.hasChild.get(0)).uri);
+			})
+			.build()
+			.convertToStream(new ByteArrayInputStream("<list xmlns=\"http://example.org/\"><item><name>a</name></item><item><name>b</name></item></list>".getBytes(StandardCharsets.UTF_8)), out);
+
+		assertEquals(6, uris.size());
+		assertFalse(uris.contains(null));
+
+	}
+
+	@Test
+	public void detectMixedContentOff() throws Exception {
+
+		testAdvancedStream(Builder.getAdvancedBuilderStream()
+			.detectMixedContent(false)
+			.useElementAsPredicate("http://example.org/friends")
+			.build());
+
+		testAdvancedStream(Builder.getAdvancedBuilderStream()
+			.detectMixedContent(false)
+			.useElementAsPredicate("http://example.org/friends")
+			.parallel(2)
+			.build());
+
+		testAdvancedJena(Builder.getAdvancedBuilderJena()
+			.detectMixedContent(false)
+			.useElementAsPredicate("http://example.org/friends")
+			.build());
+
+	}
+
+	@Test
+	public void parallelManyChunks() throws Exception {
+
+		// many more SAX events than fit in one chunk, so the records are spread over many chunks and the parsing thread
+		// has to wait for the workers to keep the number of pending chunks down
+		StringBuilder xml = new StringBuilder("<records xmlns=\"http://example.org/\">");
+		for (int i = 0; i < 20000; i++) {
+			// the prefix is declared on the record, with a different namespace every time
+			xml.append("<record xmlns:p=\"http://example.org/p").append(i % 7).append("/\" id=\"").append(i).append("\" kind=\"p:x\">");
+			if (i % 3 == 0) {
+				xml.append("<meta><a/><b>skipped</b></meta>");
+			}
+			xml.append("<value>").append(i).append("</value></record>");
+		}
+		xml.append("</records>");
+		byte[] document = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream()
+			.addIndex(true)
+			.skipElement("http://example.org/meta")
+			.resolveAsQnameInAttributeValue(true)
+			.build()
+			.convertToStream(new ByteArrayInputStream(document), expected);
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream()
+			.addIndex(true)
+			.skipElement("http://example.org/meta")
+			.resolveAsQnameInAttributeValue(true)
+			.parallel(2)
+			.build()
+			.convertToStream(new ByteArrayInputStream(document), actual);
+
+		Model expectedModel = ModelFactory.createDefaultModel().read(new ByteArrayInputStream(expected.toByteArray()), "", "N-TRIPLES");
+		Model actualModel = ModelFactory.createDefaultModel().read(new ByteArrayInputStream(actual.toByteArray()), "", "N-TRIPLES");
+		assertTrue(expectedModel.isIsomorphicWith(actualModel));
+
+		// the records are written in document order
+		assertEquals(recordIds(expected.toString("UTF-8")), recordIds(actual.toString("UTF-8")));
+
+	}
+
+	private static List<String> recordIds(String nTriples) {
+		List<String> ids = new ArrayList<>();
+		Matcher matcher = Pattern.compile("<http://example.org/id> \"([0-9]+)\"").matcher(nTriples);
+		while (matcher.find()) {
+			ids.add(matcher.group(1));
+		}
+		return ids;
+	}
+
+	@Test(timeout = 60000)
+	public void streamRdfErrors() throws Exception {
+
+		StringBuilder xml = new StringBuilder("<people xmlns=\"http://example.org/\">");
+		for (int i = 0; i < 1000; i++) {
+			xml.append("<person id=\"").append(i).append("\"><name>Person ").append(i).append("</name></person>");
+		}
+		xml.append("</people>");
+		byte[] document = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+		StreamRDF failingFinish = new StreamRDFWrapper(StreamRDFLib.graph(ModelFactory.createDefaultModel().getGraph())) {
+			@Override
+			public void finish() {
+				throw new IllegalStateException("commit failed");
+			}
+		};
+
+		try {
+			Builder.getAdvancedBuilderJena().build().convertToStreamRDF(new ByteArrayInputStream(document), failingFinish);
+			fail("The error from finish() should be reported");
+		} catch (SAXException e) {
+			// expected
+		}
+
+		// with a small buffer the parser would wait forever for a thread that died in start()
+		StreamRDF failingStart = new StreamRDFWrapper(StreamRDFLib.graph(ModelFactory.createDefaultModel().getGraph())) {
+			@Override
+			public void start() {
+				throw new IllegalStateException("begin failed");
+			}
+		};
+
+		try {
+			Builder.getAdvancedBuilderJena().setBuffer(10).build().convertToStreamRDF(new ByteArrayInputStream(document), failingStart);
+			fail("The error from start() should be reported");
+		} catch (SAXException e) {
+			// expected
+		}
+
+	}
+
+	@Test
+	public void metrics() throws Exception {
+
+		File input = new File("testFiles/metrics/input.xml");
+		String xml = new String(Files.readAllBytes(input.toPath()), StandardCharsets.UTF_8);
+		long elements = 0;
+		Matcher startTags = Pattern.compile("<[a-zA-Z]").matcher(xml);
+		while (startTags.find()) {
+			elements++;
+		}
+
+		ConversionMetrics streamMetrics = new ConversionMetrics();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Builder.getAdvancedBuilderStream()
+			.setMetrics(streamMetrics)
+			.build()
+			.convertToStream(new FileInputStream(input), out);
+		Model streamModel = ModelFactory.createDefaultModel().read(new ByteArrayInputStream(out.toByteArray()), "", "TTL");
+
+		assertEquals(elements, streamMetrics.getElements());
+		assertEquals(input.length(), streamMetrics.getBytesRead());
+		assertEquals(streamModel.size(), streamMetrics.getTriples());
+		assertEquals(0, streamMetrics.getDelayedElements());
+
+		ConversionMetrics jenaMetrics = new ConversionMetrics();
+		Dataset dataset = Builder.getAdvancedBuilderJena()
+			.setMetrics(jenaMetrics)
+			.build()
+			.convertToDataset(new FileInputStream(input));
+
+		assertEquals(elements, jenaMetrics.getElements());
+		assertEquals(input.length(), jenaMetrics.getBytesRead());
+		assertEquals(dataset.getDefaultModel().size(), jenaMetrics.getTriples());
+		assertEquals(0, jenaMetrics.getQueueSize());
+		assertEquals(0, jenaMetrics.getDelayedElements());
+
+		ConversionMetrics fastMetrics = new ConversionMetrics();
+		out = new ByteArrayOutputStream();
+		Builder.getFastBuilder()
+			.setMetrics(fastMetrics)
+			.build()
+			.convertToStream(new FileInputStream(input), out);
+		Model fastModel = ModelFactory.createDefaultModel().read(new ByteArrayInputStream(out.toByteArray()), "", "TTL");
+
+		assertEquals(elements, fastMetrics.getElements());
+		assertEquals(input.length(), fastMetrics.getBytesRead());
+		assertEquals(fastModel.size(), fastMetrics.getTriples());
+
+	}
+
+	@Test
+	public void loadIntoExistingStore() throws Exception {
+
+		Dataset dataset = DatasetFactory.createTxnMem();
+		testAdvancedJenaExistingDataset(Builder.getAdvancedBuilderJena()
+			.addIndex(true)
+			.setDataset(dataset)
+			.setCommitBatchSize(10)
+			.build(), dataset);
+
+		SailRepository repository = new SailRepository(new MemoryStore());
+		repository.init();
+		testAdvancedRDF4JExistingRepository(Builder.getAdvancedBuilderRDF4J()
+			.addIndex(true)
+			.setRepository(repository)
+			.setCommitBatchSize(10)
+			.build(), repository);
+
+	}
+
+	private void testAdvancedJenaExistingDataset(XmlToRdfAdvancedJena build, Dataset dataset) throws IOException, ParserConfigurationException, SAXException {
+		TestFiles testFiles = getTestFiles();
+
+		Dataset returned = build.convertToDataset(new FileInputStream(testFiles.xml));
+		assertTrue("The existing dataset should be returned.", returned == dataset);
+
+		Model actualModel = ModelFactory.createDefaultModel();
+		dataset.begin(ReadWrite.READ);
+		actualModel.add(dataset.getDefaultModel());
+		dataset.end();
+
+		Model expectedModel = FileManager.get().readModel(ModelFactory.createDefaultModel(), testFiles.expected.getCanonicalPath());
+
+		if (!expectedModel.isIsomorphicWith(actualModel)) {
+			try {
+				assertEquals("Not isomorphic for object method with existing jena dataset.", modelToString(expectedModel), modelToString(actualModel));
+
+			} catch (AssertionError error) {
+				collector.addError(error);
+			}
+		}
+	}
+
+	private void testAdvancedRDF4JExistingRepository(XmlToRdfAdvancedRDF4J build, Repository repository) throws IOException, ParserConfigurationException, SAXException {
+		TestFiles testFiles = getTestFiles();
+
+		Repository returned = build.convertToRepository(new FileInputStream(testFiles.xml));
+		assertTrue("The existing repository should be returned.", returned == repository);
+
+		String rdf = repositoryToString(repository, RDFFormat.JSONLD);
+		Model actualModel = ModelFactory.createDefaultModel().read(new ByteArrayInputStream(rdf.getBytes("UTF-8")), "", RDFLanguages.strLangJSONLD);
+
+		Model expectedModel = FileManager.get().readModel(ModelFactory.createDefaultModel(), testFiles.expected.getCanonicalPath());
+
+		if (!expectedModel.isIsomorphicWith(actualModel)) {
+			try {
+				assertEquals("Not isomorphic for object method with existing RDF4J repository.", modelToString(expectedModel), modelToString(actualModel));
+
+			} catch (AssertionError error) {
+				collector.addError(error);
+			}
+		}
+	}
+
 	private void testAdvancedJena(XmlToRdfAdvancedJena build) throws IOException, ParserConfigurationException, SAXException {
 		TestFiles testFiles = getTestFiles();
 
@@ -1581,6 +2343,18 @@ public class XmlToRdfTest {
 			}
 		}
 
+		Model actualModelJenaStream = ModelFactory.createDefaultModel();
+		build.convertToStreamRDF(new FileInputStream(testFiles.xml), StreamRDFLib.graph(actualModelJenaStream.getGraph()));
+
+		if (!expectedModel.isIsomorphicWith(actualModelJenaStream)) {
+			try {
+				assertEquals("Not isomorphic for object method with jena stream.", modelToString(expectedModel), modelToString(actualModelJenaStream));
+
+			} catch (AssertionError error) {
+				collector.addError(error);
+			}
+		}
+
 	}
 
 	private void testFast(XmlToRdfFast build) throws IOException, ParserConfigurationException, SAXException {
@@ -1628,6 +2402,54 @@ public class XmlToRdfTest {
 
 	}
 
+	private void testMappedInput(XmlToRdfAdvancedStream stream, XmlToRdfAdvancedJena jena, XmlToRdfAdvancedRDF4J rdf4j) throws IOException, ParserConfigurationException, SAXException {
+		TestFiles testFiles = getTestFiles();
+
+		Model expectedModel = FileManager.get().readModel(ModelFactory.createDefaultModel(), testFiles.expected.getCanonicalPath());
+
+		Path path = testFiles.xml.toPath();
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		stream.convertToStream(path, out);
+		checkIsomorphic("Not isomorphic for object method with a path.", expectedModel, turtleToModel(out));
+
+		out = new ByteArrayOutputStream();
+		stream.convertToStream(buffer, out);
+		checkIsomorphic("Not isomorphic for object method with a buffer.", expectedModel, turtleToModel(out));
+
+		checkIsomorphic("Not isomorphic for jena dataset with a path.", expectedModel, jena.convertToDataset(path).getDefaultModel());
+		checkIsomorphic("Not isomorphic for jena dataset with a buffer.", expectedModel, jena.convertToDataset(buffer).getDefaultModel());
+
+		checkIsomorphic("Not isomorphic for RDF4J repository with a path.", expectedModel, repositoryToModel(rdf4j.convertToRepository(path)));
+		checkIsomorphic("Not isomorphic for RDF4J repository with a buffer.", expectedModel, repositoryToModel(rdf4j.convertToRepository(buffer)));
+
+		assertEquals("The position of the buffer should not change.", 0, buffer.position());
+	}
+
+	private Model turtleToModel(ByteArrayOutputStream out) {
+		return ModelFactory.createDefaultModel().read(new ByteArrayInputStream(out.toByteArray()), "", "TTL");
+	}
+
+	private Model repositoryToModel(Repository repository) throws IOException {
+		String rdf = repositoryToString(repository, RDFFormat.JSONLD);
+		return ModelFactory.createDefaultModel().read(new ByteArrayInputStream(rdf.getBytes("UTF-8")), "", RDFLanguages.strLangJSONLD);
+	}
+
+	private void checkIsomorphic(String message, Model expectedModel, Model actualModel) {
+		if (!expectedModel.isIsomorphicWith(actualModel)) {
+			try {
+				assertEquals(message, modelToString(expectedModel), modelToString(actualModel));
+
+			} catch (AssertionError error) {
+				collector.addError(error);
+			}
+		}
+	}
+
 	private void testAdvancedRDF4J(XmlToRdfAdvancedRDF4J build) throws IOException, ParserConfigurationException, SAXException {
 		TestFiles testFiles = getTestFiles();
 
@@ -1646,6 +2468,19 @@ public class XmlToRdfTest {
 				collector.addError(error);
 			}
 		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		build.convertToHandler(new FileInputStream(testFiles.xml), Rio.createWriter(RDFFormat.NTRIPLES, out));
+		Model actualModelRDF4JHandler = ModelFactory.createDefaultModel().read(new ByteArrayInputStream(out.toByteArray()), "", RDFLanguages.strLangNTriples);
+
+		if (!expectedModel.isIsomorphicWith(actualModelRDF4JHandler)) {
+			try {
+				assertEquals("Not isomorphic for object method with RDF4J handler.", modelToString(expectedModel), modelToString(actualModelRDF4JHandler));
+
+			} catch (AssertionError error) {
+				collector.addError(error);
+			}
+		}
 	}
 
 	private class TestFiles {